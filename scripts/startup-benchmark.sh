@@ -0,0 +1,68 @@
+#!/usr/bin/env bash
+#
+# Reports time-to-first-checkout (JVM launch through the printed receipt) for:
+#   1. the default configuration (in-memory database, schema generation, SQL echo)
+#   2. the fast-boot profile (-Dsr0724.profile=fast) against a file database
+#   3. the fast-boot profile with an AppCDS archive built from a training run
+#
+# Usage: scripts/startup-benchmark.sh [runs]   (default 5 runs each; the median is reported)
+
+set -euo pipefail
+cd "$(dirname "$0")/.."
+
+RUNS=${1:-5}
+WORK_DIR=target/startup-benchmark
+ARCHIVE=$WORK_DIR/sr0724.jsa
+DB_URL="jdbc:h2:file:./$WORK_DIR/sr0724"
+MAIN=com.housejunction.sr0724.Sr0724Application
+CHECKOUT=()
+CHECKOUT_COUNT=0
+
+# Every run rents JAKR for its own 9 days, since the file database keeps each agreement and would turn
+# a repeated rental of the same dates away
+next_checkout() {
+    CHECKOUT=(JAKR 9 "$(date -d "2015-07-02 + $((CHECKOUT_COUNT * 10)) days" +%-m/%-d/%y)" 0)
+    CHECKOUT_COUNT=$((CHECKOUT_COUNT + 1))
+}
+
+# AppCDS only archives classes loaded from jars, so run from the packaged jar rather than target/classes
+mvn -B -q package -DskipTests dependency:build-classpath -Dmdep.outputFile=target/classpath.txt
+CLASSPATH="target/sr0724-1.0-SNAPSHOT.jar:$(cat target/classpath.txt)"
+
+rm -rf "$WORK_DIR"
+mkdir -p "$WORK_DIR"
+
+# Create the schema and catalog in the file database once
+next_checkout
+java -Dhibernate.connection.url="$DB_URL" -Dhibernate.hbm2ddl.auto=update -Dhibernate.show_sql=false \
+    -cp "$CLASSPATH" "$MAIN" "${CHECKOUT[@]}" > /dev/null
+
+# Training run: record the classes loaded by a fast-boot checkout into an AppCDS archive
+next_checkout
+java -XX:ArchiveClassesAtExit="$ARCHIVE" -Dsr0724.profile=fast -Dhibernate.connection.url="$DB_URL" \
+    -cp "$CLASSPATH" "$MAIN" "${CHECKOUT[@]}" > /dev/null 2>&1
+
+median_ms() {
+    local label=$1
+    shift
+
+    local times=()
+    for ((i = 0; i < RUNS; i++)); do
+        local start end
+        next_checkout
+        start=$(date +%s%N)
+        java "$@" -cp "$CLASSPATH" "$MAIN" "${CHECKOUT[@]}" > /dev/null 2>&1
+        end=$(date +%s%N)
+        times+=($(((end - start) / 1000000)))
+    done
+
+    local sorted
+    sorted=($(printf '%s\n' "${times[@]}" | sort -n))
+    printf '%-28s %6d ms\n' "$label" "${sorted[$((RUNS / 2))]}"
+}
+
+echo "Time to first checkout (median of $RUNS runs)"
+median_ms "default"
+median_ms "fast profile" -Dsr0724.profile=fast -Dhibernate.connection.url="$DB_URL"
+median_ms "fast profile + AppCDS" -XX:SharedArchiveFile="$ARCHIVE" \
+    -Dsr0724.profile=fast -Dhibernate.connection.url="$DB_URL"
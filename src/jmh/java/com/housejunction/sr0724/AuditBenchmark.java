@@ -0,0 +1,67 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Re-auditing 200,000 stored agreements with 1 to 8 workers
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dhibernate.show_sql=false")
+public class AuditBenchmark {
+    private static final int AGREEMENTS = 200_000;
+
+    @Param({"1", "2", "4", "8"})
+    int parallelism;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Sr0724Application.loadDatabase();
+
+        String[] toolCodes = new String[] {"CHNS", "LADW", "JAKD", "JAKR"};
+        List<RentalAgreementRow> rows = new ArrayList<>(AGREEMENTS);
+        for (int i = 0; i < AGREEMENTS; i++) {
+            RentalAgreement agreement = new RentalAgreement(ToolCatalog.get(toolCodes[i % 4]), 1 + i % 30,
+                    LocalDate.of(2000, 1, 1).plusDays(i % 9000), i % 50);
+            RentalAgreementRow row = RentalAgreementRow.of(agreement);
+            rows.add(row.withId(i + 1));
+        }
+
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            Transaction transaction = session.beginTransaction();
+            RentalAgreementRow.insertAll(session, rows);
+            transaction.commit();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        HibernateUtil.getSessionFactory().close();
+    }
+
+    @Benchmark
+    public AuditSummary audit() {
+        return AgreementAudit.run(HibernateUtil.getSessionFactory(), AgreementAudit.DEFAULT_PARTITION_SIZE,
+                parallelism);
+    }
+}
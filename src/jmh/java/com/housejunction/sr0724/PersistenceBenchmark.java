@@ -0,0 +1,75 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+// Database round trips against the in-memory H2 database
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dhibernate.show_sql=false")
+public class PersistenceBenchmark {
+    private CheckoutService service;
+    private LocalDate checkoutDate = LocalDate.of(2015, 7, 2);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Sr0724Application.loadDatabase();
+        service = new CheckoutService(HibernateUtil.getSessionFactory());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.close();
+        HibernateUtil.getSessionFactory().close();
+    }
+
+    // Validate, price and store one agreement in its own transaction. Each rental starts when the
+    // last one is due back, since a tool cannot be booked twice.
+    @Benchmark
+    public RentalAgreement checkout() {
+        RentalAgreement agreement = service.checkout(new CheckoutRequest("JAKR", 9, checkoutDate, 0));
+        checkoutDate = agreement.getDueDate();
+        return agreement;
+    }
+
+    // loadDatabase needs an empty catalog, so each invocation starts from empty tables
+    @State(Scope.Thread)
+    public static class EmptyDatabase {
+        @Setup(Level.Invocation)
+        public void clear() {
+            try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+                Transaction transaction = session.beginTransaction();
+                session.createMutationQuery("delete from RentalAgreement").executeUpdate();
+                session.createMutationQuery("delete from Tool").executeUpdate();
+                session.createMutationQuery("delete from ToolPricingVersion").executeUpdate();
+                session.createMutationQuery("delete from ToolPricing").executeUpdate();
+                transaction.commit();
+            }
+            ToolCatalog.invalidateAll();
+            ToolAvailability.rebuild();
+        }
+    }
+
+    @Benchmark
+    public void loadDatabase(EmptyDatabase emptyDatabase) {
+        Sr0724Application.loadDatabase();
+    }
+}
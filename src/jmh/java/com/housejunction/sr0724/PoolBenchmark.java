@@ -0,0 +1,78 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.SessionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Throughput of eight concurrent checkouts through a connection pool of 1, 2, 4 or 8 connections
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(value = 1, jvmArgsAppend = "-Dhibernate.show_sql=false")
+public class PoolBenchmark {
+    @Param({"1", "2", "4", "8"})
+    int poolSize;
+
+    private SessionFactory sessionFactory;
+    private CheckoutService service;
+    private final AtomicInteger nextClerk = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Sr0724Application.loadDatabase();
+        sessionFactory = HibernateUtil.buildSessionFactory(Map.of(
+                "hibernate.connection.url", "jdbc:h2:mem:pool;DB_CLOSE_DELAY=-1",
+                "hibernate.hikari.maximumPoolSize", String.valueOf(poolSize),
+                "hibernate.hikari.minimumIdle", String.valueOf(poolSize),
+                "hibernate.show_sql", "false"));
+        CatalogLoader.replicate(HibernateUtil.getSessionFactory(), sessionFactory);
+        service = new CheckoutService(sessionFactory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.close();
+        ToolAvailability.discard(sessionFactory);
+        sessionFactory.close();
+        HibernateUtil.getSessionFactory().close();
+    }
+
+    // Each benchmark thread rents the same tool in its own far-apart range of dates, so that no
+    // checkout is turned away
+    @State(Scope.Thread)
+    public static class Clerk {
+        LocalDate checkoutDate;
+
+        @Setup(Level.Trial)
+        public void setUp(PoolBenchmark benchmark) {
+            checkoutDate = LocalDate.of(3000 + 100_000 * benchmark.nextClerk.getAndIncrement(), 1, 1);
+        }
+    }
+
+    @Benchmark
+    public RentalAgreement checkout(Clerk clerk) {
+        RentalAgreement agreement = service.checkout(new CheckoutRequest("JAKR", 9, clerk.checkoutDate, 0));
+        clerk.checkoutDate = agreement.getDueDate();
+        return agreement;
+    }
+}
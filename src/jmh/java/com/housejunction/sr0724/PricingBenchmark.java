@@ -0,0 +1,62 @@
+package com.housejunction.sr0724;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+// Pricing and receipt rendering, entirely in memory
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PricingBenchmark {
+    // A short rental, a month, and three years
+    @Param({"5", "30", "1095"})
+    int rentalDays;
+
+    // Bit 0: weekday charge, bit 1: weekend charge, bit 2: holiday charge
+    @Param({"0", "1", "2", "3", "4", "5", "6", "7"})
+    int chargeFlags;
+
+    private Tool tool;
+    private RentalAgreement agreement;
+    private final LocalDate checkoutDate = LocalDate.of(2020, 7, 2);
+
+    @Setup
+    public void setUp() {
+        ToolPricing pricing = new ToolPricing("Benchmark", 299, (chargeFlags & 1) != 0,
+                (chargeFlags & 2) != 0, (chargeFlags & 4) != 0);
+        tool = new Tool("BNCH", pricing, "Benchmark");
+        agreement = new RentalAgreement(tool, rentalDays, checkoutDate, 25);
+    }
+
+    @Benchmark
+    public int chargeDays() {
+        return agreement.getChargeDays();
+    }
+
+    // Price a new agreement from scratch, as a checkout or quote does
+    @Benchmark
+    public long finalCharge() {
+        return new RentalAgreement(tool, rentalDays, checkoutDate, 25).getFinalChargeCents();
+    }
+
+    // The receipt text that print() writes
+    @Benchmark
+    public String receipt() {
+        return agreement.toReceipt();
+    }
+}
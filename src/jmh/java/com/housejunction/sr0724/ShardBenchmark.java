@@ -0,0 +1,70 @@
+package com.housejunction.sr0724;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Checkout throughput of eight stores spread over 1, 2 or 4 in-memory shards
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(value = 1, jvmArgsAppend = "-Dhibernate.show_sql=false")
+public class ShardBenchmark {
+    @Param({"1", "2", "4"})
+    int shardCount;
+
+    private StoreShards shards;
+    private final AtomicInteger nextStoreId = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Sr0724Application.loadDatabase();
+        shards = StoreShards.inMemory(shardCount);
+        shards.replicateCatalog();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        shards.close();
+        HibernateUtil.getSessionFactory().close();
+    }
+
+    // Each benchmark thread is one store. Stores rent the same tool, each in its own far-apart range of
+    // dates, so that stores sharing a shard never turn each other away.
+    @State(Scope.Thread)
+    public static class Store {
+        int storeId;
+        LocalDate checkoutDate;
+
+        @Setup(Level.Trial)
+        public void setUp(ShardBenchmark benchmark) {
+            storeId = benchmark.nextStoreId.getAndIncrement();
+            checkoutDate = LocalDate.of(3000 + 100_000 * storeId, 1, 1);
+        }
+    }
+
+    @Benchmark
+    public RentalAgreement checkout(Store store) {
+        RentalAgreement agreement = shards.checkout(store.storeId, new CheckoutRequest("JAKR", 9, store.checkoutDate, 0));
+        store.checkoutDate = agreement.getDueDate();
+        return agreement;
+    }
+}
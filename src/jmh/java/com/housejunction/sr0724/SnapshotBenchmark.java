@@ -0,0 +1,111 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Refilling an empty in-memory database with 200,000 agreements, from a snapshot or by replaying the journal
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dhibernate.show_sql=false")
+public class SnapshotBenchmark {
+    private static final int AGREEMENTS = 200_000;
+
+    @Param({"snapshot", "journal"})
+    String source;
+
+    private Path directory;
+    private Path snapshot;
+    private Path journal;
+    private SessionFactory restored;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Sr0724Application.loadDatabase();
+
+        String[] toolCodes = new String[] {"CHNS", "LADW", "JAKD", "JAKR"};
+        List<RentalAgreementRow> rows = new ArrayList<>(AGREEMENTS);
+        for (int i = 0; i < AGREEMENTS; i++) {
+            RentalAgreement agreement = new RentalAgreement(ToolCatalog.get(toolCodes[i % 4]), 1 + i % 30,
+                    LocalDate.of(2000, 1, 1).plusDays(i % 9000), i % 50);
+            RentalAgreementRow row = RentalAgreementRow.of(agreement);
+            rows.add(row.withId(i + 1));
+        }
+
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            Transaction transaction = session.beginTransaction();
+            RentalAgreementRow.insertAll(session, rows);
+            transaction.commit();
+        }
+
+        directory = Files.createTempDirectory("sr0724-snapshot");
+        snapshot = directory.resolve("rentals.snapshot");
+        journal = directory.resolve("rentals.journal");
+        RentalSnapshot.write(HibernateUtil.getSessionFactory(), snapshot);
+        try (RentalJournal writer = RentalJournal.open(journal)) {
+            writer.append(rows);
+        }
+
+        restored = HibernateUtil.buildSessionFactory(Map.of(
+                "hibernate.connection.url", "jdbc:h2:mem:restored;DB_CLOSE_DELAY=-1",
+                "hibernate.show_sql", "false"));
+    }
+
+    // Empty the database; journal replay needs the catalog already loaded
+    @Setup(Level.Invocation)
+    public void clear() {
+        restored.inTransaction(session -> {
+            session.createNativeMutationQuery("delete from rental_agreement").executeUpdate();
+            session.createNativeMutationQuery("delete from tool").executeUpdate();
+            session.createNativeMutationQuery("delete from tool_pricing_version").executeUpdate();
+            session.createNativeMutationQuery("delete from tool_pricing").executeUpdate();
+        });
+
+        if (source.equals("journal")) {
+            CatalogLoader.replicate(HibernateUtil.getSessionFactory(), restored);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ToolAvailability.discard(restored);
+        restored.close();
+        HibernateUtil.getSessionFactory().close();
+
+        Files.deleteIfExists(snapshot);
+        Files.deleteIfExists(journal);
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public long restore() {
+        return source.equals("snapshot")
+                ? RentalSnapshot.restore(restored, snapshot).agreements()
+                : RentalJournal.replay(journal, restored);
+    }
+}
@@ -0,0 +1,120 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Recalculates the charges of every stored agreement and compares them with the stored charges, ex,
+// after fixing a pricing or holiday bug. Run it with --audit.
+//
+// The id range of rental_agreement is split in half recursively on a ForkJoinPool until each part spans
+// at most partitionSize ids. Each part is read in one query through a stateless session, so nothing is
+// kept in a persistence context, and memory holds at most one partition per worker however large the
+// table is. Each worker needs a connection, so parallelism above the connection pool size
+// (hibernate.hikari.maximumPoolSize) only adds waiting.
+public class AgreementAudit {
+    public static final int DEFAULT_PARTITION_SIZE = 10_000;
+
+    private AgreementAudit() {}
+
+    // Audit with one worker per core
+    public static AuditSummary run(SessionFactory sessionFactory) {
+        return run(sessionFactory, DEFAULT_PARTITION_SIZE, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static AuditSummary run(SessionFactory sessionFactory, int partitionSize, int parallelism) {
+        if (partitionSize < 1 || parallelism < 1) {
+            throw new RuntimeException("Partition size and parallelism must be 1 or greater.");
+        }
+
+        long start = System.nanoTime();
+        AuditSummary summary = new AuditSummary();
+
+        Object[] range;
+        try (StatelessSession session = sessionFactory.openStatelessSession()) {
+            range = session.createSelectionQuery("select min(a.id), max(a.id) from RentalAgreement a", Object[].class)
+                    .getSingleResult();
+        }
+
+        if (range[0] != null) {
+            try (ForkJoinPool pool = new ForkJoinPool(parallelism)) {
+                pool.invoke(new Partition(sessionFactory, (Long) range[0], (Long) range[1], partitionSize, summary));
+            }
+        }
+
+        summary.finish(System.nanoTime() - start);
+        return summary;
+    }
+
+    // The agreements with ids from first to last, inclusive
+    private static class Partition extends RecursiveAction {
+        private final SessionFactory sessionFactory;
+        private final long first;
+        private final long last;
+        private final int partitionSize;
+        private final AuditSummary summary;
+
+        Partition(SessionFactory sessionFactory, long first, long last, int partitionSize, AuditSummary summary) {
+            this.sessionFactory = sessionFactory;
+            this.first = first;
+            this.last = last;
+            this.partitionSize = partitionSize;
+            this.summary = summary;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first < partitionSize) {
+                audit();
+                return;
+            }
+
+            long middle = first + (last - first) / 2;
+            invokeAll(new Partition(sessionFactory, first, middle, partitionSize, summary),
+                    new Partition(sessionFactory, middle + 1, last, partitionSize, summary));
+        }
+
+        private void audit() {
+            List<RentalAgreement> agreements;
+            try (StatelessSession session = sessionFactory.openStatelessSession()) {
+                agreements = session.createSelectionQuery("from RentalAgreement a join fetch a.pricingVersion" +
+                                " where a.id between :first and :last", RentalAgreement.class)
+                        .setParameter("first", first)
+                        .setParameter("last", last)
+                        .setFetchSize(partitionSize)
+                        .getResultList();
+            }
+
+            for (RentalAgreement agreement : agreements) {
+                check(agreement);
+            }
+            summary.partitionChecked(agreements.size());
+        }
+
+        private void check(RentalAgreement agreement) {
+            ChargeSummary stored = agreement.getChargeSummary();
+            ChargeSummary expected;
+
+            try {
+                // An unknown calendar is an error even for tools that charge on holidays and so never ask it
+                agreement.getHolidayCalendar();
+                expected = agreement.recalculateChargeSummary();
+            } catch (RuntimeException e) {
+                summary.mismatch(agreement.getId(), e.getMessage());
+                return;
+            }
+
+            if (stored == null) {
+                summary.mismatch(agreement.getId(), "No charges are stored; expected " + expected + ".");
+            } else if (stored.getChargeDays() != expected.getChargeDays()
+                    || stored.getPreDiscountChargeCents() != expected.getPreDiscountChargeCents()
+                    || stored.getDiscountAmountCents() != expected.getDiscountAmountCents()
+                    || stored.getFinalChargeCents() != expected.getFinalChargeCents()) {
+                summary.mismatch(agreement.getId(), "Stored " + stored + "; expected " + expected + ".");
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.graph.GraphSemantic;
+import org.hibernate.query.SelectionQuery;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Reporting queries over stored agreements. Every listing is in (checkout date, id) order and is read
+// either a page at a time or as a stream, so memory use does not grow with the table.
+//
+// Pages use keyset pagination: each page ends with a cursor holding the last row's checkout date and
+// id, and the next page seeks past it through the (checkout_date, id) or (tool_code, checkout_date, id)
+// index instead of skipping an OFFSET, so every page costs the same no matter how deep it is.
+//
+// Each listing comes in two forms. The listBy... and forEachBy... methods return read-only
+// RentalAgreement entities, fetched with their tool, pricing and pricing version through
+// RentalAgreement.RECEIPT_GRAPH. The summarizeBy... and forEachSummaryBy... methods select only the
+// receipt columns into AgreementSummary records, which is cheaper when nothing needs the entities.
+// Either way a page, or a whole stream, is a single select.
+public class AgreementReports {
+    public static final int FETCH_SIZE = 1000;
+
+    // Where the previous page ended; pass null to start from the beginning
+    public record Cursor(LocalDate checkoutDate, long id) {}
+
+    // One page of agreements, and the cursor to continue from, or null on the last page
+    public record Page(List<RentalAgreement> agreements, Cursor next) {}
+
+    // One page of summaries, and the cursor to continue from, or null on the last page
+    public record SummaryPage(List<AgreementSummary> summaries, Cursor next) {}
+
+    private static final String SELECT = "select a from RentalAgreement a ";
+    private static final String ORDER = " order by a.checkoutDate, a.id";
+
+    private final SessionFactory sessionFactory;
+
+    public AgreementReports(SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    // Agreements checked out between from and to, inclusive
+    public Page listByCheckoutDate(LocalDate from, LocalDate to, Cursor after, int pageSize) {
+        return page("a.checkoutDate between :from and :to", Map.of("from", from, "to", to), after, pageSize);
+    }
+
+    public Page listByToolCode(String toolCode, Cursor after, int pageSize) {
+        return page("a.tool.code = :toolCode", Map.of("toolCode", toolCode), after, pageSize);
+    }
+
+    public Page listByToolType(String toolType, Cursor after, int pageSize) {
+        return page("a.tool.code in :toolCodes", Map.of("toolCodes", toolCodes(toolType)), after, pageSize);
+    }
+
+    // Pass every agreement checked out between from and to, inclusive, to action without holding them
+    // all in memory. Returns how many agreements were read.
+    public long forEachByCheckoutDate(LocalDate from, LocalDate to, Consumer<RentalAgreement> action) {
+        return forEach("a.checkoutDate between :from and :to", Map.of("from", from, "to", to), action);
+    }
+
+    public long forEachByToolCode(String toolCode, Consumer<RentalAgreement> action) {
+        return forEach("a.tool.code = :toolCode", Map.of("toolCode", toolCode), action);
+    }
+
+    public long forEachByToolType(String toolType, Consumer<RentalAgreement> action) {
+        return forEach("a.tool.code in :toolCodes", Map.of("toolCodes", toolCodes(toolType)), action);
+    }
+
+    // Summaries of the agreements checked out between from and to, inclusive
+    public SummaryPage summarizeByCheckoutDate(LocalDate from, LocalDate to, Cursor after, int pageSize) {
+        return summaryPage("a.checkoutDate between :from and :to", Map.of("from", from, "to", to), after, pageSize);
+    }
+
+    public SummaryPage summarizeByToolCode(String toolCode, Cursor after, int pageSize) {
+        return summaryPage("a.tool.code = :toolCode", Map.of("toolCode", toolCode), after, pageSize);
+    }
+
+    public SummaryPage summarizeByToolType(String toolType, Cursor after, int pageSize) {
+        return summaryPage("a.tool.code in :toolCodes", Map.of("toolCodes", toolCodes(toolType)), after, pageSize);
+    }
+
+    public long forEachSummaryByCheckoutDate(LocalDate from, LocalDate to, Consumer<AgreementSummary> action) {
+        return forEachSummary("a.checkoutDate between :from and :to", Map.of("from", from, "to", to), action);
+    }
+
+    public long forEachSummaryByToolCode(String toolCode, Consumer<AgreementSummary> action) {
+        return forEachSummary("a.tool.code = :toolCode", Map.of("toolCode", toolCode), action);
+    }
+
+    public long forEachSummaryByToolType(String toolType, Consumer<AgreementSummary> action) {
+        return forEachSummary("a.tool.code in :toolCodes", Map.of("toolCodes", toolCodes(toolType)), action);
+    }
+
+    private Page page(String filter, Map<String, Object> parameters, Cursor after, int pageSize) {
+        List<RentalAgreement> agreements = list(SELECT, RentalAgreement.class, filter, parameters, after, pageSize);
+        Cursor next = null;
+        if (agreements.size() == pageSize) {
+            RentalAgreement last = agreements.getLast();
+            next = new Cursor(last.getCheckoutDate(), last.getId());
+        }
+
+        return new Page(agreements, next);
+    }
+
+    private SummaryPage summaryPage(String filter, Map<String, Object> parameters, Cursor after, int pageSize) {
+        List<AgreementSummary> summaries = list(AgreementSummary.SELECT, AgreementSummary.class, filter, parameters,
+                after, pageSize);
+        Cursor next = null;
+        if (summaries.size() == pageSize) {
+            AgreementSummary last = summaries.getLast();
+            next = new Cursor(last.checkoutDate(), last.id());
+        }
+
+        return new SummaryPage(summaries, next);
+    }
+
+    private <T> List<T> list(String select, Class<T> resultType, String filter, Map<String, Object> parameters,
+                             Cursor after, int pageSize) {
+        if (pageSize < 1) {
+            throw new RuntimeException("Page size must be 1 or greater.");
+        }
+
+        try (Session session = sessionFactory.openSession()) {
+            String seek = after == null ? "" : " and (a.checkoutDate, a.id) > (:afterDate, :afterId)";
+            SelectionQuery<T> query = query(session, select + "where " + filter + seek + ORDER, resultType)
+                    .setFetchSize(pageSize)
+                    .setMaxResults(pageSize);
+            parameters.forEach(query::setParameter);
+            if (after != null) {
+                query.setParameter("afterDate", after.checkoutDate()).setParameter("afterId", after.id());
+            }
+
+            return query.getResultList();
+        }
+    }
+
+    private long forEach(String filter, Map<String, Object> parameters, Consumer<RentalAgreement> action) {
+        return scroll(SELECT, RentalAgreement.class, filter, parameters, action);
+    }
+
+    private long forEachSummary(String filter, Map<String, Object> parameters, Consumer<AgreementSummary> action) {
+        return scroll(AgreementSummary.SELECT, AgreementSummary.class, filter, parameters, action);
+    }
+
+    private <T> long scroll(String select, Class<T> resultType, String filter, Map<String, Object> parameters,
+                            Consumer<T> action) {
+        long count = 0;
+
+        try (Session session = sessionFactory.openSession()) {
+            SelectionQuery<T> query = query(session, select + "where " + filter + ORDER, resultType)
+                    .setFetchSize(FETCH_SIZE);
+            parameters.forEach(query::setParameter);
+
+            try (ScrollableResults<T> results = query.scroll(ScrollMode.FORWARD_ONLY)) {
+                while (results.next()) {
+                    action.accept(results.get());
+
+                    // Drop what has been read so the persistence context stays small
+                    if (++count % FETCH_SIZE == 0) {
+                        session.clear();
+                    }
+                }
+            }
+        }
+
+        return count;
+    }
+
+    // Entities are read-only and fetched through the receipt graph; summaries are plain values
+    private static <T> SelectionQuery<T> query(Session session, String hql, Class<T> resultType) {
+        SelectionQuery<T> query = session.createSelectionQuery(hql, resultType).setReadOnly(true);
+
+        if (resultType == RentalAgreement.class) {
+            query.setHint(GraphSemantic.FETCH.getJakartaHintName(),
+                    session.getEntityGraph(RentalAgreement.RECEIPT_GRAPH));
+        }
+        return query;
+    }
+
+    private List<String> toolCodes(String toolType) {
+        try (Session session = sessionFactory.openSession()) {
+            List<String> codes = session
+                    .createSelectionQuery("select t.code from Tool t where t.toolPricing.toolType = :toolType", String.class)
+                    .setParameter("toolType", toolType)
+                    .getResultList();
+
+            // "in ()" is not valid SQL, so match nothing with a code no tool can have
+            return codes.isEmpty() ? List.of("") : codes;
+        }
+    }
+}
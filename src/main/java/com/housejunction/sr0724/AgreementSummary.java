@@ -0,0 +1,38 @@
+package com.housejunction.sr0724;
+
+import java.time.LocalDate;
+
+// A read-only copy of everything on a stored agreement's receipt. Reports select these columns
+// straight into the record (see AgreementReports), so listing agreements loads no entities and
+// leaves nothing in the persistence context to dirty check.
+public record AgreementSummary(long id, String toolCode, String toolType, String toolBrand, int rentalDays,
+                               LocalDate checkoutDate, long dailyRentalChargeCents, int chargeDays,
+                               long preDiscountChargeCents, int discountPercent, long discountAmountCents,
+                               long finalChargeCents) {
+    // Builds one record per row of a query over RentalAgreement a, joined to its tool t and pricing
+    // version v
+    static final String SELECT = "select new com.housejunction.sr0724.AgreementSummary(a.id, t.code, " +
+            "t.toolPricing.toolType, t.brand, a.rentalDays, a.checkoutDate, v.dailyChargeCents, " +
+            "a.chargeSummary.chargeDays, a.chargeSummary.preDiscountChargeCents, a.discountPercent, " +
+            "a.chargeSummary.discountAmountCents, a.chargeSummary.finalChargeCents) " +
+            "from RentalAgreement a join a.tool t join a.pricingVersion v ";
+
+    public static AgreementSummary of(RentalAgreement agreement) {
+        Tool tool = agreement.getTool();
+        ChargeSummary charges = agreement.getChargeSummary();
+
+        return new AgreementSummary(agreement.getId(), tool.getCode(), tool.getType(), tool.getBrand(),
+                agreement.getRentalDays(), agreement.getCheckoutDate(), agreement.getDailyRentalChargeCents(),
+                charges.getChargeDays(), charges.getPreDiscountChargeCents(), agreement.getDiscountPercent(),
+                charges.getDiscountAmountCents(), charges.getFinalChargeCents());
+    }
+
+    public LocalDate dueDate() {
+        return checkoutDate.plusDays(rentalDays);
+    }
+
+    // The receipt, exactly as the agreement itself would print it
+    public String toReceipt() {
+        return ReceiptRenderer.render(this, ReceiptRenderer.Format.TEXT);
+    }
+}
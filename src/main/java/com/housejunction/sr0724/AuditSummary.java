@@ -0,0 +1,78 @@
+package com.housejunction.sr0724;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counts and sample mismatches from an AgreementAudit. Only the first few mismatches are kept
+// so that auditing a table full of wrong charges does not grow memory.
+public class AuditSummary {
+    private static final int MAX_MISMATCH_SAMPLES = 100;
+
+    private final AtomicLong agreementsChecked = new AtomicLong();
+    private final AtomicLong partitions = new AtomicLong();
+    private final AtomicLong mismatchCount = new AtomicLong();
+    private final List<String> mismatchSamples = new ArrayList<>();
+    private long elapsedNanos;
+
+    void partitionChecked(int agreements) {
+        partitions.incrementAndGet();
+        agreementsChecked.addAndGet(agreements);
+    }
+
+    void mismatch(long agreementId, String message) {
+        mismatchCount.incrementAndGet();
+
+        synchronized (mismatchSamples) {
+            if (mismatchSamples.size() < MAX_MISMATCH_SAMPLES) {
+                mismatchSamples.add("Agreement " + agreementId + ": " + message);
+            }
+        }
+    }
+
+    void finish(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public long getAgreementsChecked() {
+        return agreementsChecked.get();
+    }
+
+    public long getPartitions() {
+        return partitions.get();
+    }
+
+    public long getMismatchCount() {
+        return mismatchCount.get();
+    }
+
+    public List<String> getMismatchSamples() {
+        synchronized (mismatchSamples) {
+            return Collections.unmodifiableList(new ArrayList<>(mismatchSamples));
+        }
+    }
+
+    public double getElapsedSeconds() {
+        return elapsedNanos / 1_000_000_000.0;
+    }
+
+    public double getAgreementsPerSecond() {
+        return elapsedNanos == 0 ? 0 : getAgreementsChecked() / getElapsedSeconds();
+    }
+
+    public void print() {
+        System.out.printf("Agreements checked: %d%n", getAgreementsChecked());
+        System.out.printf("Partitions: %d%n", getPartitions());
+        System.out.printf("Mismatches: %d%n", getMismatchCount());
+        System.out.printf("Elapsed time: %.3f s%n", getElapsedSeconds());
+        System.out.printf("Throughput: %.0f agreements/s%n", getAgreementsPerSecond());
+
+        for (String mismatch : getMismatchSamples()) {
+            System.out.println(mismatch);
+        }
+        if (getMismatchCount() > MAX_MISMATCH_SAMPLES) {
+            System.out.printf("... and %d more mismatches%n", getMismatchCount() - MAX_MISMATCH_SAMPLES);
+        }
+    }
+}
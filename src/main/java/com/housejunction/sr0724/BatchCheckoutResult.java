@@ -0,0 +1,36 @@
+package com.housejunction.sr0724;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+// The outcome of a batch checkout: the agreements that were stored and the requests that were not
+public class BatchCheckoutResult {
+    // A request that could not be checked out, with its position in the batch
+    public record Failure(int index, CheckoutRequest request, String message) {}
+
+    private final List<RentalAgreement> agreements = new ArrayList<>();
+    private final List<Failure> failures = new ArrayList<>();
+
+    void addAgreements(List<RentalAgreement> agreements) {
+        this.agreements.addAll(agreements);
+    }
+
+    void addFailure(int index, CheckoutRequest request, String message) {
+        failures.add(new Failure(index, request, message));
+    }
+
+    // Put the failures back in batch order once every chunk has been processed
+    void sortFailures() {
+        failures.sort(Comparator.comparingInt(Failure::index));
+    }
+
+    public List<RentalAgreement> getAgreements() {
+        return Collections.unmodifiableList(agreements);
+    }
+
+    public List<Failure> getFailures() {
+        return Collections.unmodifiableList(failures);
+    }
+}
@@ -0,0 +1,350 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.Session;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Streams checkout records from a CSV or NDJSON file into the database. Reading and parsing,
+// pricing, and persistence each run on their own thread with bounded queues between them,
+// so memory stays flat no matter how large the file is.
+//
+// CSV lines hold: tool code, rental days, checkout date, discount percent (ex, "JAKR,9,7/2/15,0").
+// A first line naming those columns is a header (see isCsvHeader). NDJSON lines hold one flat object
+// per line (ex, {"toolCode": "JAKR", "rentalDays": 9, "checkoutDate": "7/2/15", "discountPercent": 0}).
+public class BulkImporter {
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    private static final int CHUNK_SIZE = 500;
+    // The CSV columns, in order, as a header names them once case, spaces, dashes and underscores are ignored
+    private static final List<String> CSV_COLUMNS = List.of("toolcode", "rentaldays", "checkoutdate",
+            "discountpercent");
+
+    // Marks the end of the stream on each queue
+    private static final Row END = new Row(-1, null, null);
+
+    // A line of the file as it moves through the pipeline
+    private record Row(long lineNumber, CheckoutRequest request, RentalAgreement agreement) {}
+
+    public static ImportSummary importFile(Path file) {
+        return importFile(file, null);
+    }
+
+    // Import the file and write a receipt for every stored agreement to the receipts file, as JSON lines
+    // when its name ends in .json, .ndjson or .jsonl and as text otherwise. The receipts file may be null.
+    public static ImportSummary importFile(Path file, Path receiptsFile) {
+        String fileName = file.getFileName().toString().toLowerCase();
+        boolean ndjson = fileName.endsWith(".ndjson") || fileName.endsWith(".jsonl");
+
+        ImportSummary summary = new ImportSummary();
+        long start = System.nanoTime();
+
+        BlockingQueue<Row> parsed = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<Row> priced = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+        Thread parser = startStage("import-parser", () -> parse(file, ndjson, parsed, summary), failure);
+        Thread pricer = startStage("import-pricer", () -> price(parsed, priced, summary), failure, parser);
+
+        boolean persisted = false;
+        try (Writer receipts = receiptsFile == null ? null : new BufferedWriter(
+                Files.newBufferedWriter(receiptsFile, StandardCharsets.UTF_8), WRITE_BUFFER_SIZE)) {
+            persist(priced, summary, receipts, receiptFormat(receiptsFile));
+            persisted = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("The import was interrupted.");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write receipts to " + receiptsFile, e);
+        } finally {
+            // Stages left running behind a failed persist would block on their full queues
+            if (!persisted) {
+                parser.interrupt();
+                pricer.interrupt();
+            }
+            joinStages(parser, pricer);
+        }
+
+        if (failure.get() != null) {
+            throw new RuntimeException("The import stopped: " + failure.get().getMessage(), failure.get());
+        }
+
+        summary.finish(System.nanoTime() - start);
+        return summary;
+    }
+
+    // Start a stage on its own thread. A stage that fails still ends its output queue, so the stages
+    // after it finish, and interrupts the stages feeding it, so that none is left blocked on a full queue.
+    private static Thread startStage(String name, Runnable stage, AtomicReference<RuntimeException> failure,
+                                     Thread... upstream) {
+        return Thread.ofPlatform().name(name).daemon().start(() -> {
+            try {
+                stage.run();
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+                for (Thread thread : upstream) {
+                    thread.interrupt();
+                }
+            }
+        });
+    }
+
+    private static void joinStages(Thread... stages) {
+        boolean interrupted = false;
+
+        for (Thread stage : stages) {
+            while (stage.isAlive()) {
+                try {
+                    stage.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Stage 1: read lines and turn them into checkout requests
+    private static void parse(Path file, boolean ndjson, BlockingQueue<Row> out, ImportSummary summary) {
+        try (BufferedReader reader = new BufferedReader(
+                Files.newBufferedReader(file, StandardCharsets.UTF_8), READ_BUFFER_SIZE)) {
+            long lineNumber = 0;
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank() || (lineNumber == 1 && !ndjson && isCsvHeader(line))) {
+                    continue;
+                }
+
+                CheckoutRequest request;
+                try {
+                    request = ndjson ? parseJsonLine(line) : parseCsvLine(line);
+                } catch (RuntimeException e) {
+                    summary.lineRead();
+                    summary.error(lineNumber, e.getMessage());
+                    continue;
+                }
+
+                summary.lineRead();
+                out.put(new Row(lineNumber, request, null));
+            }
+        } catch (IOException e) {
+            summary.error(0, "Could not read " + file + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            putEnd(out);
+        }
+    }
+
+    // Stage 2: validate each request and price it against the tool catalog
+    private static void price(BlockingQueue<Row> in, BlockingQueue<Row> out, ImportSummary summary) {
+        try {
+            for (Row row = in.take(); row != END; row = in.take()) {
+                CheckoutRequest request = row.request();
+
+                // A row that fails validation, or cannot be priced on its checkout date, is reported
+                // and the rest of the file goes on
+                RentalAgreement agreement;
+                try {
+                    request.validate();
+
+                    Tool tool = ToolCatalog.get(request.toolCode());
+                    if (tool == null) {
+                        summary.error(row.lineNumber(), Sr0724Application.unknownToolMessage(request.toolCode()));
+                        continue;
+                    }
+
+                    agreement = new RentalAgreement(tool, request.rentalDays(), request.checkoutDate(),
+                            request.discountPercent());
+                } catch (RuntimeException e) {
+                    summary.error(row.lineNumber(), e.getMessage());
+                    continue;
+                }
+
+                out.put(new Row(row.lineNumber(), request, agreement));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            putEnd(out);
+        }
+    }
+
+    // Stage 3: insert the priced agreements in chunked transactions
+    private static void persist(BlockingQueue<Row> in, ImportSummary summary, Writer receipts,
+                                ReceiptRenderer.Format receiptFormat) throws InterruptedException, IOException {
+        List<Long> chunkLines = new ArrayList<>(CHUNK_SIZE);
+        List<CheckoutRequest> chunkRequests = new ArrayList<>(CHUNK_SIZE);
+        List<RentalAgreement> chunk = new ArrayList<>(CHUNK_SIZE);
+
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            for (Row row = in.take(); row != END; row = in.take()) {
+                chunkLines.add(row.lineNumber());
+                chunkRequests.add(row.request());
+                chunk.add(row.agreement());
+
+                if (chunk.size() == CHUNK_SIZE) {
+                    persistChunk(session, chunkLines, chunkRequests, chunk, summary, receipts, receiptFormat);
+                }
+            }
+
+            if (!chunk.isEmpty()) {
+                persistChunk(session, chunkLines, chunkRequests, chunk, summary, receipts, receiptFormat);
+            }
+        }
+    }
+
+    private static void persistChunk(Session session, List<Long> chunkLines, List<CheckoutRequest> chunkRequests,
+                                     List<RentalAgreement> chunk, ImportSummary summary, Writer receipts,
+                                     ReceiptRenderer.Format receiptFormat) throws IOException {
+        // Failures come back by position in the chunk and are reported by line number, which can go past
+        // the range of the int positions of a batch
+        List<Integer> positions = new ArrayList<>(chunk.size());
+        for (int i = 0; i < chunk.size(); i++) {
+            positions.add(i);
+        }
+        BatchCheckoutResult result = new BatchCheckoutResult();
+        Sr0724Application.persistChunk(session, positions, chunkRequests, chunk, result);
+
+        summary.agreementsStored(result.getAgreements().size());
+        if (receipts != null) {
+            for (RentalAgreement agreement : result.getAgreements()) {
+                ReceiptRenderer.render(agreement, receiptFormat, receipts);
+            }
+        }
+        for (BatchCheckoutResult.Failure failure : result.getFailures()) {
+            summary.error(chunkLines.get(failure.index()), failure.message());
+        }
+
+        chunkLines.clear();
+        chunkRequests.clear();
+        chunk.clear();
+    }
+
+    private static ReceiptRenderer.Format receiptFormat(Path receiptsFile) {
+        if (receiptsFile == null) {
+            return null;
+        }
+
+        String name = receiptsFile.getFileName().toString().toLowerCase();
+        boolean json = name.endsWith(".json") || name.endsWith(".ndjson") || name.endsWith(".jsonl");
+        return json ? ReceiptRenderer.Format.JSON : ReceiptRenderer.Format.TEXT;
+    }
+
+    private static void putEnd(BlockingQueue<Row> queue) {
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // A line naming the CSV columns in order (ex, "tool code,rental days,checkout date,discount percent"
+    // or "toolCode,rentalDays,checkoutDate,discountPercent")
+    static boolean isCsvHeader(String line) {
+        String[] fields = line.split(",", -1);
+
+        if (fields.length != CSV_COLUMNS.size()) {
+            return false;
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (!fields[i].replaceAll("[\\s_-]", "").toLowerCase().equals(CSV_COLUMNS.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static CheckoutRequest parseCsvLine(String line) {
+        String[] fields = line.split(",", -1);
+
+        if (fields.length != 4) {
+            throw new RuntimeException("There should be 4 fields: tool code, rental days, checkout date," +
+                    " and discount percent.");
+        }
+
+        return CheckoutRequest.parse(fields[0].strip(), fields[1].strip(), fields[2].strip(), fields[3].strip());
+    }
+
+    // Parse a flat JSON object whose values are strings or numbers
+    static CheckoutRequest parseJsonLine(String line) {
+        Map<String, String> fields = new HashMap<>();
+        int i = skipWhitespace(line, 0);
+
+        if (i >= line.length() || line.charAt(i) != '{') {
+            throw new RuntimeException("Each line should be a JSON object.");
+        }
+        i = skipWhitespace(line, i + 1);
+
+        while (i < line.length() && line.charAt(i) != '}') {
+            int keyEnd = line.indexOf('"', i + 1);
+            if (line.charAt(i) != '"' || keyEnd < 0) {
+                throw new RuntimeException("Expected a quoted field name at column " + (i + 1) + ".");
+            }
+            String key = line.substring(i + 1, keyEnd);
+
+            i = skipWhitespace(line, keyEnd + 1);
+            if (i >= line.length() || line.charAt(i) != ':') {
+                throw new RuntimeException("Expected ':' at column " + (i + 1) + ".");
+            }
+            i = skipWhitespace(line, i + 1);
+
+            int valueEnd;
+            String value;
+            if (i < line.length() && line.charAt(i) == '"') {
+                valueEnd = line.indexOf('"', i + 1);
+                if (valueEnd < 0) {
+                    throw new RuntimeException("Unterminated string at column " + (i + 1) + ".");
+                }
+                value = line.substring(i + 1, valueEnd);
+                valueEnd++;
+            } else {
+                valueEnd = i;
+                while (valueEnd < line.length() && line.charAt(valueEnd) != ',' && line.charAt(valueEnd) != '}') {
+                    valueEnd++;
+                }
+                value = line.substring(i, valueEnd).strip();
+            }
+            fields.put(key, value);
+
+            i = skipWhitespace(line, valueEnd);
+            if (i < line.length() && line.charAt(i) == ',') {
+                i = skipWhitespace(line, i + 1);
+            }
+        }
+
+        for (String key : new String[] {"toolCode", "rentalDays", "checkoutDate", "discountPercent"}) {
+            if (!fields.containsKey(key)) {
+                throw new RuntimeException("Missing the \"" + key + "\" field.");
+            }
+        }
+
+        return CheckoutRequest.parse(fields.get("toolCode"), fields.get("rentalDays"),
+                fields.get("checkoutDate"), fields.get("discountPercent"));
+    }
+
+    private static int skipWhitespace(String line, int i) {
+        while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
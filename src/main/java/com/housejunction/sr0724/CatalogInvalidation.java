@@ -0,0 +1,76 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCommitDeleteEventListener;
+import org.hibernate.event.spi.PostCommitInsertEventListener;
+import org.hibernate.event.spi.PostCommitUpdateEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.persister.entity.EntityPersister;
+
+// Drops cached tools and quotes once a change to a Tool, ToolPricing or ToolPricingVersion has been
+// committed. Entity callbacks run at flush, before the commit, so a checkout reading the catalog in
+// between would cache the old row again, and a rolled-back change would still empty the caches.
+class CatalogInvalidation implements PostCommitInsertEventListener, PostCommitUpdateEventListener,
+        PostCommitDeleteEventListener {
+    private static final CatalogInvalidation INSTANCE = new CatalogInvalidation();
+
+    static void register(SessionFactory factory) {
+        EventListenerRegistry listeners = factory.unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry()
+                .requireService(EventListenerRegistry.class);
+        listeners.appendListeners(EventType.POST_COMMIT_INSERT, INSTANCE);
+        listeners.appendListeners(EventType.POST_COMMIT_UPDATE, INSTANCE);
+        listeners.appendListeners(EventType.POST_COMMIT_DELETE, INSTANCE);
+    }
+
+    private static void invalidate(Object entity) {
+        if (entity instanceof Tool tool) {
+            ToolCatalog.invalidate(tool.getCode());
+        } else if (entity instanceof ToolPricing pricing) {
+            ToolCatalog.invalidatePricing(pricing.getToolType());
+            QuoteCache.invalidatePricing(pricing.getToolType());
+        } else if (entity instanceof ToolPricingVersion version) {
+            ToolCatalog.invalidatePricing(version.getToolType());
+            QuoteCache.invalidatePricing(version.getToolType());
+        }
+    }
+
+    @Override
+    public boolean requiresPostCommitHandling(EntityPersister persister) {
+        Class<?> type = persister.getMappedClass();
+        return type == Tool.class || type == ToolPricing.class || type == ToolPricingVersion.class;
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        invalidate(event.getEntity());
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        invalidate(event.getEntity());
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        invalidate(event.getEntity());
+    }
+
+    // A change that was rolled back left the database, and so the caches, as they were
+    @Override
+    public void onPostInsertCommitFailed(PostInsertEvent event) {
+    }
+
+    @Override
+    public void onPostUpdateCommitFailed(PostUpdateEvent event) {
+    }
+
+    @Override
+    public void onPostDeleteCommitFailed(PostDeleteEvent event) {
+    }
+}
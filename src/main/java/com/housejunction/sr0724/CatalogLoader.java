@@ -0,0 +1,412 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Loads tool pricings and tools from a catalog file in one batched transaction. Each row is upserted
+// by its key, so loading the same file again changes nothing, loading an edited file updates the rows
+// it names, and rows the file does not mention are left alone.
+//
+// The file is CSV, one pricing or tool per line, with blank lines and "#" comments ignored:
+//   pricing,<tool type>,<daily charge in cents>,<weekday charge>,<weekend charge>,<holiday charge>[,<effective from>]
+//   tool,<tool code>,<tool type>,<brand>
+// A pricing line adds a ToolPricingVersion effective from the given date (yyyy-mm-dd). Without a date,
+// a new tool type is priced from ToolPricingVersion.EARLIEST, and an existing one is repriced from today
+// if its current price differs. Pricing versions are never changed: a line giving a different price
+// for a date that already has one is an error.
+public class CatalogLoader {
+    public static final String STANDARD_CATALOG = "catalog.csv";
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final String MERGE_PRICING_SQL = "merge into tool_pricing (tool_type) key (tool_type) values (?)";
+    private static final String INSERT_VERSION_SQL = "insert into tool_pricing_version (id, tool_type," +
+            " effective_from, daily_charge_cents, weekday_charge, weekend_charge, holiday_charge)" +
+            " values (next value for tool_pricing_version_seq, ?, ?, ?, ?, ?, ?)";
+    private static final String MERGE_TOOL_SQL = "merge into tool (code, toolPricing_tool_type, brand)" +
+            " key (code) values (?, ?, ?)";
+    private static final String MERGE_VERSION_SQL = "merge into tool_pricing_version (id, tool_type," +
+            " effective_from, daily_charge_cents, weekday_charge, weekend_charge, holiday_charge)" +
+            " key (id) values (?, ?, ?, ?, ?, ?, ?)";
+
+    // The number of pricing lines and tools in a loaded catalog
+    public record Result(int pricings, int tools) {}
+
+    private record PricingRow(int lineNumber, String toolType, LocalDate effectiveFrom, long dailyChargeCents,
+                              boolean weekdayCharge, boolean weekendCharge, boolean holidayCharge) {
+        boolean hasSameTerms(PricingRow other) {
+            return dailyChargeCents == other.dailyChargeCents && weekdayCharge == other.weekdayCharge
+                    && weekendCharge == other.weekendCharge && holidayCharge == other.holidayCharge;
+        }
+    }
+
+    record ToolRow(String code, String toolType, String brand) {}
+
+    record VersionRow(long id, String toolType, LocalDate effectiveFrom, long dailyChargeCents,
+                      boolean weekdayCharge, boolean weekendCharge, boolean holidayCharge) {}
+
+    // Every pricing, pricing version and tool in a database, ids included
+    record CatalogRows(List<String> toolTypes, List<VersionRow> versions, List<ToolRow> tools) {}
+
+    public static Result load(Path file, SessionFactory sessionFactory) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return load(reader, sessionFactory);
+        }
+    }
+
+    // Load the catalog bundled with the application
+    public static Result loadStandard(SessionFactory sessionFactory) {
+        try (InputStream in = CatalogLoader.class.getClassLoader().getResourceAsStream(STANDARD_CATALOG)) {
+            if (in == null) {
+                throw new RuntimeException("No " + STANDARD_CATALOG + " was found.");
+            }
+            return load(new InputStreamReader(in, StandardCharsets.UTF_8), sessionFactory);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read " + STANDARD_CATALOG + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Copy every pricing, pricing version and tool in source into replica, keeping their ids, so that
+    // an agreement stored in the replica can reference a tool or pricing version loaded from the source
+    // (see StoreShards). A replica's catalog should only ever be changed this way. Returns the number of
+    // pricing versions and tools copied.
+    public static Result replicate(SessionFactory source, SessionFactory replica) {
+        CatalogRows catalog = source.fromSession(session -> session.doReturningWork(CatalogLoader::readAll));
+
+        try (Session session = replica.openSession()) {
+            Transaction transaction = session.beginTransaction();
+
+            try {
+                session.doWork(connection -> mergeAll(connection, catalog));
+                transaction.commit();
+            } catch (RuntimeException e) {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+                throw new RuntimeException("Could not replicate the catalog: " + e.getMessage(), e);
+            }
+        }
+
+        return new Result(catalog.versions().size(), catalog.tools().size());
+    }
+
+    // Read every pricing, pricing version and tool as stored
+    static CatalogRows readAll(Connection connection) throws SQLException {
+        List<String> toolTypes = new ArrayList<>();
+        List<VersionRow> versions = new ArrayList<>();
+        List<ToolRow> tools = new ArrayList<>();
+
+        try (Statement statement = connection.createStatement()) {
+            try (ResultSet result = statement.executeQuery("select tool_type from tool_pricing")) {
+                while (result.next()) {
+                    toolTypes.add(result.getString(1));
+                }
+            }
+
+            try (ResultSet result = statement.executeQuery("select id, tool_type, effective_from," +
+                    " daily_charge_cents, weekday_charge, weekend_charge, holiday_charge" +
+                    " from tool_pricing_version")) {
+                while (result.next()) {
+                    versions.add(new VersionRow(result.getLong(1), result.getString(2),
+                            result.getDate(3).toLocalDate(), result.getLong(4), result.getBoolean(5),
+                            result.getBoolean(6), result.getBoolean(7)));
+                }
+            }
+
+            try (ResultSet result = statement.executeQuery("select code, toolPricing_tool_type, brand from tool")) {
+                while (result.next()) {
+                    tools.add(new ToolRow(result.getString(1), result.getString(2), result.getString(3)));
+                }
+            }
+        }
+
+        return new CatalogRows(toolTypes, versions, tools);
+    }
+
+    // Upsert the rows with their ids, and move the pricing version sequence past them, within the
+    // connection's current transaction
+    static void mergeAll(Connection connection, CatalogRows catalog) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(MERGE_PRICING_SQL)) {
+            for (String toolType : catalog.toolTypes()) {
+                statement.setString(1, toolType);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(MERGE_VERSION_SQL)) {
+            int batched = 0;
+
+            for (VersionRow version : catalog.versions()) {
+                statement.setLong(1, version.id());
+                statement.setString(2, version.toolType());
+                statement.setDate(3, Date.valueOf(version.effectiveFrom()));
+                statement.setLong(4, version.dailyChargeCents());
+                statement.setBoolean(5, version.weekdayCharge());
+                statement.setBoolean(6, version.weekendCharge());
+                statement.setBoolean(7, version.holidayCharge());
+                statement.addBatch();
+
+                if (++batched % BATCH_SIZE == 0) {
+                    statement.executeBatch();
+                }
+            }
+
+            statement.executeBatch();
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(MERGE_TOOL_SQL)) {
+            int batched = 0;
+
+            for (ToolRow tool : catalog.tools()) {
+                statement.setString(1, tool.code());
+                statement.setString(2, tool.toolType());
+                statement.setString(3, tool.brand());
+                statement.addBatch();
+
+                if (++batched % BATCH_SIZE == 0) {
+                    statement.executeBatch();
+                }
+            }
+
+            statement.executeBatch();
+        }
+
+        // Keep the sequence past the copied ids
+        long restart = 1 + catalog.versions().stream().mapToLong(VersionRow::id).max().orElse(0);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("alter sequence tool_pricing_version_seq restart with " + restart);
+        }
+    }
+
+    public static Result load(Reader reader, SessionFactory sessionFactory) throws IOException {
+        // Later lines for the same key win, as they would if the file were loaded line by line
+        Map<String, PricingRow> pricings = new LinkedHashMap<>();
+        Map<String, ToolRow> tools = new LinkedHashMap<>();
+
+        BufferedReader lines = new BufferedReader(reader);
+        int lineNumber = 0;
+        for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+            lineNumber++;
+            line = line.strip();
+
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            try {
+                String[] fields = line.split(",", -1);
+                for (int i = 0; i < fields.length; i++) {
+                    fields[i] = fields[i].strip();
+                }
+
+                switch (fields[0]) {
+                    case "pricing" -> {
+                        PricingRow pricing = parsePricing(lineNumber, fields);
+                        pricings.put(pricing.toolType() + "@" + pricing.effectiveFrom(), pricing);
+                    }
+                    case "tool" -> {
+                        if (fields.length != 4) {
+                            throw new RuntimeException("A tool line should have 4 fields: tool, tool code," +
+                                    " tool type, and brand.");
+                        }
+                        tools.put(fields[1], new ToolRow(fields[1], fields[2], fields[3]));
+                    }
+                    default -> throw new RuntimeException("Each line should start with \"pricing\" or \"tool\".");
+                }
+            } catch (RuntimeException e) {
+                throw new RuntimeException("Line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+
+        store(List.copyOf(pricings.values()), List.copyOf(tools.values()), sessionFactory);
+        return new Result(pricings.size(), tools.size());
+    }
+
+    private static PricingRow parsePricing(int lineNumber, String[] fields) {
+        if (fields.length != 6 && fields.length != 7) {
+            throw new RuntimeException("A pricing line should have 6 or 7 fields: pricing, tool type, daily charge" +
+                    " in cents, weekday charge, weekend charge, holiday charge, and optionally the date it takes" +
+                    " effect.");
+        }
+
+        long dailyChargeCents;
+        try {
+            dailyChargeCents = Long.parseLong(fields[2]);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("The daily charge should be a whole number of cents.");
+        }
+        if (dailyChargeCents < 0) {
+            throw new RuntimeException("The daily charge cannot be negative.");
+        }
+
+        LocalDate effectiveFrom = null;
+        if (fields.length == 7) {
+            try {
+                effectiveFrom = LocalDate.parse(fields[6]);
+            } catch (DateTimeParseException e) {
+                throw new RuntimeException("The effective date should be in the format yyyy-mm-dd.");
+            }
+        }
+
+        return new PricingRow(lineNumber, fields[1], effectiveFrom, dailyChargeCents, parseFlag(fields[3]),
+                parseFlag(fields[4]), parseFlag(fields[5]));
+    }
+
+    private static boolean parseFlag(String field) {
+        return switch (field) {
+            case "true" -> true;
+            case "false" -> false;
+            default -> throw new RuntimeException("Charge flags should be true or false.");
+        };
+    }
+
+    private static void store(List<PricingRow> pricings, List<ToolRow> tools, SessionFactory sessionFactory) {
+        try (Session session = sessionFactory.openSession()) {
+            Transaction transaction = session.beginTransaction();
+
+            try {
+                session.doWork(connection -> {
+                    try (PreparedStatement statement = connection.prepareStatement(MERGE_PRICING_SQL)) {
+                        int batched = 0;
+
+                        for (PricingRow pricing : pricings) {
+                            statement.setString(1, pricing.toolType());
+                            statement.addBatch();
+
+                            if (++batched % BATCH_SIZE == 0) {
+                                statement.executeBatch();
+                            }
+                        }
+
+                        statement.executeBatch();
+                    }
+
+                    // The stored versions of every tool type, by effective date
+                    Map<String, TreeMap<LocalDate, PricingRow>> versions = new HashMap<>();
+                    try (Statement statement = connection.createStatement();
+                         ResultSet result = statement.executeQuery("select tool_type, effective_from," +
+                                 " daily_charge_cents, weekday_charge, weekend_charge, holiday_charge" +
+                                 " from tool_pricing_version")) {
+                        while (result.next()) {
+                            PricingRow version = new PricingRow(0, result.getString(1),
+                                    result.getDate(2).toLocalDate(), result.getLong(3), result.getBoolean(4),
+                                    result.getBoolean(5), result.getBoolean(6));
+                            versions.computeIfAbsent(version.toolType(), type -> new TreeMap<>())
+                                    .put(version.effectiveFrom(), version);
+                        }
+                    }
+
+                    try (PreparedStatement statement = connection.prepareStatement(INSERT_VERSION_SQL)) {
+                        int batched = 0;
+
+                        for (PricingRow pricing : newVersions(pricings, versions)) {
+                            statement.setString(1, pricing.toolType());
+                            statement.setDate(2, Date.valueOf(pricing.effectiveFrom()));
+                            statement.setLong(3, pricing.dailyChargeCents());
+                            statement.setBoolean(4, pricing.weekdayCharge());
+                            statement.setBoolean(5, pricing.weekendCharge());
+                            statement.setBoolean(6, pricing.holidayCharge());
+                            statement.addBatch();
+
+                            if (++batched % BATCH_SIZE == 0) {
+                                statement.executeBatch();
+                            }
+                        }
+
+                        statement.executeBatch();
+                    }
+
+                    try (PreparedStatement statement = connection.prepareStatement(MERGE_TOOL_SQL)) {
+                        int batched = 0;
+
+                        for (ToolRow tool : tools) {
+                            statement.setString(1, tool.code());
+                            statement.setString(2, tool.toolType());
+                            statement.setString(3, tool.brand());
+                            statement.addBatch();
+
+                            if (++batched % BATCH_SIZE == 0) {
+                                statement.executeBatch();
+                            }
+                        }
+
+                        statement.executeBatch();
+                    }
+                });
+
+                transaction.commit();
+            } catch (RuntimeException e) {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+                throw new RuntimeException("Could not load the catalog: " + e.getMessage(), e);
+            }
+        }
+
+        // The rows were written behind Hibernate's back, so nothing cached can be trusted
+        ToolCatalog.invalidateAll();
+        QuoteCache.invalidateAll();
+    }
+
+    // The pricing lines that are not stored yet, with their effective dates filled in
+    private static List<PricingRow> newVersions(List<PricingRow> pricings,
+                                                Map<String, TreeMap<LocalDate, PricingRow>> versions) {
+        List<PricingRow> added = new ArrayList<>();
+        LocalDate today = LocalDate.now();
+
+        for (PricingRow pricing : pricings) {
+            TreeMap<LocalDate, PricingRow> stored = versions.computeIfAbsent(pricing.toolType(), type -> new TreeMap<>());
+            LocalDate effectiveFrom = pricing.effectiveFrom();
+
+            if (effectiveFrom == null) {
+                Map.Entry<LocalDate, PricingRow> current = stored.floorEntry(today);
+                if (current != null && current.getValue().hasSameTerms(pricing)) {
+                    continue;
+                }
+                effectiveFrom = stored.isEmpty() ? ToolPricingVersion.EARLIEST : today;
+            }
+
+            PricingRow existing = stored.get(effectiveFrom);
+            if (existing != null) {
+                if (existing.hasSameTerms(pricing)) {
+                    continue;
+                }
+                throw new RuntimeException("Line " + pricing.lineNumber() + ": The " + pricing.toolType() +
+                        " already has a different price from " + effectiveFrom + ".");
+            }
+
+            PricingRow version = new PricingRow(pricing.lineNumber(), pricing.toolType(), effectiveFrom,
+                    pricing.dailyChargeCents(), pricing.weekdayCharge(), pricing.weekendCharge(),
+                    pricing.holidayCharge());
+            stored.put(effectiveFrom, version);
+            added.add(version);
+        }
+
+        return added;
+    }
+}
@@ -0,0 +1,64 @@
+package com.housejunction.sr0724;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Embeddable;
+
+// The charges of a rental agreement, calculated once and stored alongside it
+// so that printing and reporting never need to recalculate them
+@Embeddable
+public class ChargeSummary {
+    @Column(name = "charge_days")
+    private int chargeDays;
+
+    @Column(name = "pre_discount_charge_cents")
+    private long preDiscountChargeCents;
+
+    @Column(name = "discount_amount_cents")
+    private long discountAmountCents;
+
+    @Column(name = "final_charge_cents")
+    private long finalChargeCents;
+
+    protected ChargeSummary() {}
+
+    private ChargeSummary(int chargeDays, long preDiscountChargeCents, long discountAmountCents,
+                          long finalChargeCents) {
+        this.chargeDays = chargeDays;
+        this.preDiscountChargeCents = preDiscountChargeCents;
+        this.discountAmountCents = discountAmountCents;
+        this.finalChargeCents = finalChargeCents;
+    }
+
+    // All amounts are whole cents, so the only rounding is the discount, which rounds half up
+    public static ChargeSummary calculate(int chargeDays, long dailyRentalChargeCents, int discountPercent) {
+        long preDiscountChargeCents = dailyRentalChargeCents * chargeDays;
+        long discountAmountCents = Money.percentOf(preDiscountChargeCents, discountPercent);
+
+        return new ChargeSummary(chargeDays, preDiscountChargeCents, discountAmountCents,
+                preDiscountChargeCents - discountAmountCents);
+    }
+
+    public int getChargeDays() {
+        return chargeDays;
+    }
+
+    public long getPreDiscountChargeCents() {
+        return preDiscountChargeCents;
+    }
+
+    public long getDiscountAmountCents() {
+        return discountAmountCents;
+    }
+
+    public long getFinalChargeCents() {
+        return finalChargeCents;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ChargeSummary: {chargeDays=\"%d\", preDiscountCharge=\"%s\"," +
+                        " discountAmount=\"%s\", finalCharge=\"%s\"}",
+                this.chargeDays, Money.format(this.preDiscountChargeCents),
+                Money.format(this.discountAmountCents), Money.format(this.finalChargeCents));
+    }
+}
@@ -0,0 +1,131 @@
+package com.housejunction.sr0724;
+
+import jdk.jfr.EventType;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latency histograms per checkout phase, validation rejection counts and Hibernate statistics.
+// Collection is off unless enabled with -Dsr0724.metrics=true or setEnabled(true); while it is off
+// (and no JFR recording has the CheckoutPhase event on), timing a phase costs one volatile read.
+//
+// Usage:
+//   long start = CheckoutMetrics.start();
+//   ... work ...
+//   CheckoutMetrics.record(CheckoutMetrics.Phase.INSERT, start);
+public class CheckoutMetrics {
+    public enum Phase {
+        SESSION_FACTORY_BUILD,
+        TOOL_LOOKUP,
+        PRICING,
+        INSERT,
+        COMMIT,
+        // Waiting for room in the write-behind queue
+        ENQUEUE,
+        PRINT,
+        TOTAL
+    }
+
+    // Latency percentiles of one phase, in nanoseconds
+    public record PhaseLatency(long count, long p50, long p99, long p999) {}
+
+    // Hibernate statistics, present only when statistics are enabled on the SessionFactory
+    public record HibernateStatistics(long queryExecutions, long preparedStatements, long entityInserts,
+                                      long flushes, long transactions, long secondLevelCacheHits,
+                                      long secondLevelCacheMisses) {}
+
+    public record Snapshot(Map<Phase, PhaseLatency> latencies, long validationRejections,
+                           HibernateStatistics hibernate) {}
+
+    private static volatile boolean enabled = Boolean.getBoolean("sr0724.metrics");
+
+    private static final EventType PHASE_EVENT = EventType.getEventType(CheckoutPhaseEvent.class);
+    private static final Map<Phase, LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+    private static final LongAdder validationRejections = new LongAdder();
+
+    static {
+        for (Phase phase : Phase.values()) {
+            histograms.put(phase, new LatencyHistogram());
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    // Also turns Hibernate statistics on or off for the shared SessionFactory
+    public static void setEnabled(boolean enabled) {
+        CheckoutMetrics.enabled = enabled;
+
+        SessionFactory sessionFactory = HibernateUtil.getSessionFactory();
+        if (sessionFactory != null) {
+            sessionFactory.getStatistics().setStatisticsEnabled(enabled);
+        }
+    }
+
+    // The start time of a phase, or 0 when nothing is collecting
+    public static long start() {
+        return enabled || PHASE_EVENT.isEnabled() ? System.nanoTime() : 0;
+    }
+
+    public static void record(Phase phase, long start) {
+        if (start == 0) {
+            return;
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        if (enabled) {
+            histograms.get(phase).record(elapsed);
+        }
+
+        if (PHASE_EVENT.isEnabled()) {
+            CheckoutPhaseEvent event = new CheckoutPhaseEvent();
+            if (event.shouldCommit()) {
+                event.phase = phase.name();
+                event.elapsed = elapsed;
+                event.commit();
+            }
+        }
+    }
+
+    public static void validationRejected() {
+        if (enabled) {
+            validationRejections.increment();
+        }
+    }
+
+    public static Snapshot snapshot() {
+        return snapshot(HibernateUtil.getSessionFactory());
+    }
+
+    public static Snapshot snapshot(SessionFactory sessionFactory) {
+        Map<Phase, PhaseLatency> latencies = new EnumMap<>(Phase.class);
+        histograms.forEach((phase, histogram) -> latencies.put(phase, new PhaseLatency(histogram.getCount(),
+                histogram.getPercentile(50), histogram.getPercentile(99), histogram.getPercentile(99.9))));
+
+        HibernateStatistics hibernate = null;
+        if (sessionFactory != null && sessionFactory.getStatistics().isStatisticsEnabled()) {
+            Statistics statistics = sessionFactory.getStatistics();
+            hibernate = new HibernateStatistics(statistics.getQueryExecutionCount(),
+                    statistics.getPrepareStatementCount(), statistics.getEntityInsertCount(),
+                    statistics.getFlushCount(), statistics.getTransactionCount(),
+                    statistics.getSecondLevelCacheHitCount(), statistics.getSecondLevelCacheMissCount());
+        }
+
+        return new Snapshot(Map.copyOf(latencies), validationRejections.sum(), hibernate);
+    }
+
+    public static void reset() {
+        histograms.values().forEach(LatencyHistogram::reset);
+        validationRejections.reset();
+
+        SessionFactory sessionFactory = HibernateUtil.getSessionFactory();
+        if (sessionFactory != null) {
+            sessionFactory.getStatistics().clear();
+        }
+    }
+}
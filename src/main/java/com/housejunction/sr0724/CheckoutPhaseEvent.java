@@ -0,0 +1,24 @@
+package com.housejunction.sr0724;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// JFR event recorded for each timed phase of a checkout (and for building the SessionFactory)
+@Name("com.housejunction.sr0724.CheckoutPhase")
+@Label("Checkout Phase")
+@Category({"House Junction", "Checkout"})
+@Description("Time spent in one phase of a checkout")
+@StackTrace(false)
+class CheckoutPhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+}
@@ -0,0 +1,54 @@
+package com.housejunction.sr0724;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+// The inputs of a single checkout, as entered at the point of sale
+public record CheckoutRequest(String toolCode, int rentalDays, LocalDate checkoutDate, int discountPercent) {
+    // DateTimeFormatter is immutable and thread-safe, so one instance serves every parse
+    public static final DateTimeFormatter CHECKOUT_DATE_FORMAT = DateTimeFormatter.ofPattern("M/d/yy");
+
+    // Parse the text form of a checkout (ex, command line args or a line of an import file)
+    public static CheckoutRequest parse(String toolCode, String rentalDays, String checkoutDate,
+                                        String discountPercent) {
+        int parsedRentalDays;
+        LocalDate parsedCheckoutDate;
+        int parsedDiscountPercent;
+
+        try {
+            parsedRentalDays = Integer.parseInt(rentalDays);
+        } catch (Exception e) {
+            throw new RuntimeException("Something is wrong with the rental days arg." +
+                    " Make sure it is an integer value.");
+        }
+
+        try {
+            parsedCheckoutDate = LocalDate.parse(checkoutDate, CHECKOUT_DATE_FORMAT);
+        } catch (Exception e) {
+            throw new RuntimeException("Something is wrong with the checkout date arg." +
+                    " Make sure it is in the following format: \"mm/dd/yy\" (ex, \"3/15/20\")");
+        }
+
+        try {
+            parsedDiscountPercent = Integer.parseInt(discountPercent);
+        } catch (Exception e) {
+            throw new RuntimeException("Something is wrong with the discount percent arg." +
+                    " Make sure it is an integer value.");
+        }
+
+        return new CheckoutRequest(toolCode, parsedRentalDays, parsedCheckoutDate, parsedDiscountPercent);
+    }
+
+    // Throws if the rental days or discount percent are out of range
+    public void validate() {
+        if (rentalDays < 1) {
+            CheckoutMetrics.validationRejected();
+            throw new RuntimeException("Rental days must be 1 or greater.");
+        }
+
+        if (discountPercent < 0 || discountPercent > 100) {
+            CheckoutMetrics.validationRejected();
+            throw new RuntimeException("Discount percent must be in the range 0 to 100, inclusive.");
+        }
+    }
+}
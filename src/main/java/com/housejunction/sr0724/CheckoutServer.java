@@ -0,0 +1,126 @@
+package com.housejunction.sr0724;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.hibernate.exception.JDBCConnectionException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLTransientConnectionException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+// Long-running HTTP front end that boots Hibernate once and then serves checkouts and quotes.
+// Connections are kept alive between requests, and each request runs on its own virtual thread.
+//
+//   GET or POST /checkout?toolCode=JAKR&rentalDays=9&checkoutDate=7/2/15&discountPercent=0
+//   GET or POST /quote?toolCode=JAKR&rentalDays=9&checkoutDate=7/2/15&discountPercent=0
+//
+// Both return the receipt as plain text. A request that is turned away (ex, a bad parameter, an unknown
+// tool, or a tool that is already rented) gets status 400 with the error message; 503 means no database
+// connection could be had, and 500 any other failure of the server.
+// POST requests may send the parameters as a form-encoded body instead of a query string.
+public class CheckoutServer implements AutoCloseable {
+    public static final int DEFAULT_PORT = 7240;
+
+    private final HttpServer server;
+    private final CheckoutService service;
+
+    public CheckoutServer(int port, CheckoutService service) throws IOException {
+        this.service = service;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        this.server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        this.server.createContext("/checkout", exchange -> handle(exchange, true));
+        this.server.createContext("/quote", exchange -> handle(exchange, false));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    // The port being listened on, which is useful when the server was created with port 0
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        service.close();
+    }
+
+    private void handle(HttpExchange exchange, boolean store) throws IOException {
+        int status;
+        String body;
+
+        try {
+            Map<String, String> params = readParams(exchange);
+            CheckoutRequest request = CheckoutRequest.parse(params.get("toolCode"), params.get("rentalDays"),
+                    params.get("checkoutDate"), params.get("discountPercent"));
+
+            RentalAgreement agreement = store ? service.checkout(request) : service.quote(request);
+            status = 200;
+            body = agreement.toReceipt();
+        } catch (RuntimeException e) {
+            status = statusOf(e);
+            if (status == 400) {
+                body = e.getMessage() + System.lineSeparator();
+            } else {
+                System.out.println(e.getMessage());
+                body = (status == 503 ? "The database is unavailable. Try again later." : "Internal server error.") +
+                        System.lineSeparator();
+            }
+        }
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // Requests are turned away with a plain RuntimeException whose message is meant for the user (see
+    // CheckoutRequest, CheckoutService and ToolAvailability). Anything else is the server's own failure.
+    static int statusOf(RuntimeException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof JDBCConnectionException || cause instanceof SQLTransientConnectionException) {
+                return 503;
+            }
+        }
+
+        return e.getClass() == RuntimeException.class ? 400 : 500;
+    }
+
+    private static Map<String, String> readParams(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parseForm(exchange.getRequestURI().getRawQuery(), params);
+
+        try (InputStream in = exchange.getRequestBody()) {
+            if (exchange.getRequestMethod().equals("POST")) {
+                parseForm(new String(in.readAllBytes(), StandardCharsets.UTF_8), params);
+            }
+        }
+
+        return params;
+    }
+
+    private static void parseForm(String form, Map<String, String> params) {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+
+        for (String pair : form.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+// Checks out tools and returns the stored agreements. Safe to share between threads: each checkout
+// uses its own session, and a semaphore caps how many run at once so that callers queue here
+// rather than time out waiting on the connection pool.
+public class CheckoutService implements AutoCloseable {
+    private static final int DEFAULT_MAX_CONCURRENCY = 10;
+
+    private final SessionFactory sessionFactory;
+    private final Semaphore permits;
+    private final boolean journaled;
+    private final Function<String, Tool> tools;
+    private final WriteBehindQueue writeBehind;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Allow as many concurrent checkouts as the connection pool has connections
+    public CheckoutService(SessionFactory sessionFactory) {
+        this(sessionFactory, poolSize(sessionFactory));
+    }
+
+    public CheckoutService(SessionFactory sessionFactory, int maxConcurrency) {
+        this(sessionFactory, maxConcurrency, true);
+    }
+
+    CheckoutService(SessionFactory sessionFactory, int maxConcurrency, boolean journaled) {
+        this(sessionFactory, maxConcurrency, journaled, ToolCatalog::get);
+    }
+
+    // Store shards are not journaled, since the journal replays into HibernateUtil's database, and look
+    // tools up in their own copy of the catalog rather than in ToolCatalog
+    CheckoutService(SessionFactory sessionFactory, int maxConcurrency, boolean journaled,
+                    Function<String, Tool> tools) {
+        this(sessionFactory, maxConcurrency, journaled, tools, null);
+    }
+
+    private CheckoutService(SessionFactory sessionFactory, int maxConcurrency, boolean journaled,
+                            Function<String, Tool> tools, WriteBehindQueue writeBehind) {
+        if (maxConcurrency < 1) {
+            throw new RuntimeException("Max concurrency must be 1 or greater.");
+        }
+
+        this.sessionFactory = sessionFactory;
+        this.permits = new Semaphore(maxConcurrency, true);
+        this.journaled = journaled;
+        this.tools = tools;
+        this.writeBehind = writeBehind;
+    }
+
+    // A service whose checkouts return once the agreement is priced and queued, and are stored in the
+    // background in batches of up to WriteBehindQueue.DEFAULT_BATCH_SIZE. See WriteBehindQueue for what
+    // is and is not durable when checkout returns.
+    public static CheckoutService writeBehind(SessionFactory sessionFactory, int queueCapacity) {
+        return new CheckoutService(sessionFactory, poolSize(sessionFactory), true, ToolCatalog::get,
+                new WriteBehindQueue(sessionFactory, queueCapacity, WriteBehindQueue.DEFAULT_BATCH_SIZE, true));
+    }
+
+    // Price a checkout without storing it. Runs no transaction and writes nothing, and the charges for
+    // the same pricing and terms are calculated once and then served from QuoteCache.
+    public RentalAgreement quote(String toolCode, int rentalDays, LocalDate checkoutDate, int discountPercent) {
+        return quote(new CheckoutRequest(toolCode, rentalDays, checkoutDate, discountPercent));
+    }
+
+    public RentalAgreement quote(CheckoutRequest request) {
+        return price(request, true);
+    }
+
+    private RentalAgreement price(CheckoutRequest request, boolean memoized) {
+        request.validate();
+
+        long start = CheckoutMetrics.start();
+        Tool tool = tools.apply(request.toolCode());
+        CheckoutMetrics.record(CheckoutMetrics.Phase.TOOL_LOOKUP, start);
+
+        if (tool == null) {
+            throw new RuntimeException(Sr0724Application.unknownToolMessage(request.toolCode()));
+        }
+
+        start = CheckoutMetrics.start();
+        QuoteCache.Key key = null;
+        ChargeSummary charges = null;
+        if (memoized) {
+            ToolPricingVersion pricing = tool.getToolPricing().getVersion(request.checkoutDate());
+            key = new QuoteCache.Key(QuoteCache.PricingSnapshot.of(pricing), request.checkoutDate(),
+                    request.rentalDays(), request.discountPercent(), HolidayCalendar.DEFAULT.getName());
+            charges = QuoteCache.get(key);
+        }
+
+        RentalAgreement agreement = new RentalAgreement(tool, request.rentalDays(), request.checkoutDate(),
+                request.discountPercent(), HolidayCalendar.DEFAULT, charges);
+        if (memoized && charges == null) {
+            QuoteCache.put(key, agreement.getChargeSummary());
+        }
+        CheckoutMetrics.record(CheckoutMetrics.Phase.PRICING, start);
+
+        return agreement;
+    }
+
+    // Validate, price and store a checkout on the calling thread
+    public RentalAgreement checkout(CheckoutRequest request) {
+        return checkout(request, null);
+    }
+
+    // A checkout made at the given store, which is stored with the agreement (see StoreShards)
+    RentalAgreement checkout(CheckoutRequest request, Integer storeId) {
+        long checkoutStart = CheckoutMetrics.start();
+        // Stored agreements are always priced from scratch rather than from the quote cache
+        RentalAgreement agreement = price(request, false);
+        agreement.setStoreId(storeId);
+        boolean stored = false;
+
+        // Claim the tool first, so a concurrent checkout of the same tool and dates is turned away
+        ToolAvailability.reserve(sessionFactory, agreement);
+
+        if (writeBehind != null) {
+            long start = CheckoutMetrics.start();
+            try {
+                writeBehind.submit(agreement);
+            } catch (RuntimeException e) {
+                ToolAvailability.release(sessionFactory, agreement);
+                throw e;
+            }
+            CheckoutMetrics.record(CheckoutMetrics.Phase.ENQUEUE, start);
+
+            CheckoutMetrics.record(CheckoutMetrics.Phase.TOTAL, checkoutStart);
+            return agreement;
+        }
+
+        permits.acquireUninterruptibly();
+        try (Session session = sessionFactory.openSession()) {
+            Transaction transaction = session.beginTransaction();
+
+            try {
+                long start = CheckoutMetrics.start();
+                session.persist(agreement);
+                session.flush();
+                CheckoutMetrics.record(CheckoutMetrics.Phase.INSERT, start);
+
+                start = CheckoutMetrics.start();
+                transaction.commit();
+                CheckoutMetrics.record(CheckoutMetrics.Phase.COMMIT, start);
+                stored = true;
+            } catch (RuntimeException e) {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+                throw e;
+            }
+        } finally {
+            permits.release();
+
+            if (stored) {
+                ToolAvailability.confirm(sessionFactory, List.of(agreement));
+            } else {
+                ToolAvailability.release(sessionFactory, agreement);
+            }
+        }
+
+        // Outside the permit, so that waiting for the journal's fsync does not hold up other checkouts
+        if (journaled) {
+            RentalJournal.recordCommitted(List.of(agreement));
+        }
+
+        CheckoutMetrics.record(CheckoutMetrics.Phase.TOTAL, checkoutStart);
+        return agreement;
+    }
+
+    // Run a checkout on its own virtual thread
+    public CompletableFuture<RentalAgreement> checkoutAsync(CheckoutRequest request) {
+        return checkoutAsync(request, null);
+    }
+
+    CompletableFuture<RentalAgreement> checkoutAsync(CheckoutRequest request, Integer storeId) {
+        return CompletableFuture.supplyAsync(() -> checkout(request, storeId), executor);
+    }
+
+    // Wait until every write-behind checkout made so far is stored. Does nothing for a service that
+    // stores checkouts before returning them.
+    public void flush() {
+        if (writeBehind != null) {
+            writeBehind.flush();
+        }
+    }
+
+    // The write-behind queue, or null when checkouts are stored before they return
+    public WriteBehindQueue getWriteBehindQueue() {
+        return writeBehind;
+    }
+
+    // Wait for the running checkouts to finish, then for any queued agreements to be stored
+    @Override
+    public void close() {
+        executor.close();
+        if (writeBehind != null) {
+            writeBehind.close();
+        }
+    }
+
+    static int poolSize(SessionFactory sessionFactory) {
+        Object poolSize = sessionFactory.getProperties().get("hibernate.hikari.maximumPoolSize");
+
+        return poolSize == null ? DEFAULT_MAX_CONCURRENCY : Integer.parseInt(poolSize.toString());
+    }
+}
@@ -5,33 +5,107 @@ import org.hibernate.boot.Metadata;
 import org.hibernate.boot.MetadataSources;
 import org.hibernate.boot.registry.StandardServiceRegistry;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.engine.config.spi.StandardConverters;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
 
 public class HibernateUtil {
-    private static StandardServiceRegistry registry;
-    private static SessionFactory sessionFactory;
+    public static final String PROFILE_PROPERTY = "sr0724.profile";
+
+    private static volatile SessionFactory sessionFactory;
 
+    // Safe to call from many threads at once: only the first caller builds the SessionFactory
     public static SessionFactory getSessionFactory() {
-        if (sessionFactory == null) {
-            try {
-                // Create registry
-                registry = new StandardServiceRegistryBuilder().configure().build();
+        SessionFactory factory = sessionFactory;
 
-                // Create MetadataSources
-                MetadataSources sources = new MetadataSources(registry);
+        if (factory == null) {
+            synchronized (HibernateUtil.class) {
+                factory = sessionFactory;
 
-                // Create Metadata
-                Metadata metadata = sources.getMetadataBuilder().build();
+                if (factory == null) {
+                    factory = buildSessionFactory(Map.of());
+                    sessionFactory = factory;
+                }
+            }
+        }
+        return factory;
+    }
 
-                // Create SessionFactory
-                sessionFactory = metadata.getSessionFactoryBuilder().build();
+    // Build a new SessionFactory from hibernate.cfg.xml. Settings are applied in this order, each
+    // overriding the ones before it:
+    //   1. hibernate.cfg.xml
+    //   2. hibernate-<profile>.properties, when a profile is chosen with -Dsr0724.profile=<profile>
+    //   3. system properties whose names start with "hibernate." (ex, -Dhibernate.hikari.maximumPoolSize=32)
+    //   4. the given settings
+    // With sr0724.schema.migrate=true, pending SchemaMigrations are applied before the SessionFactory is built.
+    public static SessionFactory buildSessionFactory(Map<String, Object> settings) {
+        StandardServiceRegistry registry = null;
+        long start = CheckoutMetrics.start();
 
-            } catch (Exception e) {
-                System.out.println(e.getMessage());
-                if (registry != null) {
-                    StandardServiceRegistryBuilder.destroy(registry);
+        try {
+            // Create registry
+            StandardServiceRegistryBuilder registryBuilder = new StandardServiceRegistryBuilder().configure();
+            registryBuilder.applySettings(loadProfile(System.getProperty(PROFILE_PROPERTY)));
+            System.getProperties().forEach((name, value) -> {
+                if (name.toString().startsWith("hibernate.")) {
+                    registryBuilder.applySetting(name.toString(), value);
                 }
+            });
+            registryBuilder.applySettings(settings);
+            if (CheckoutMetrics.isEnabled()) {
+                registryBuilder.applySetting("hibernate.generate_statistics", true);
+            }
+            registry = registryBuilder.build();
+
+            // Bring a persistent database's schema up to date before Hibernate validates it
+            boolean migrate = registry.requireService(ConfigurationService.class)
+                    .getSetting(SchemaMigrations.MIGRATE_SETTING, StandardConverters.BOOLEAN, false);
+            if (migrate) {
+                SchemaMigrations.migrate(registry.requireService(ConnectionProvider.class));
+            }
+
+            // Create MetadataSources
+            MetadataSources sources = new MetadataSources(registry);
+
+            // Create Metadata
+            Metadata metadata = sources.getMetadataBuilder().build();
+
+            // Create SessionFactory
+            SessionFactory factory = metadata.getSessionFactoryBuilder().build();
+            CatalogInvalidation.register(factory);
+
+            CheckoutMetrics.record(CheckoutMetrics.Phase.SESSION_FACTORY_BUILD, start);
+            return factory;
+
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            if (registry != null) {
+                StandardServiceRegistryBuilder.destroy(registry);
             }
+            return null;
         }
-        return sessionFactory;
+    }
+
+    private static Properties loadProfile(String profile) throws IOException {
+        Properties properties = new Properties();
+
+        if (profile == null || profile.isEmpty()) {
+            return properties;
+        }
+
+        String resource = "hibernate-" + profile + ".properties";
+        try (InputStream in = HibernateUtil.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new RuntimeException("No " + resource + " was found for the \"" + profile + "\" profile.");
+            }
+            properties.load(in);
+        }
+
+        return properties;
     }
 }
@@ -0,0 +1,160 @@
+package com.housejunction.sr0724;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.Month;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+// A named set of holiday rules. The observed dates for each year are compiled once into sorted
+// arrays of epoch days (all of them, and those on weekdays and on weekends) and cached, so counting
+// holidays in a range is a binary search.
+public class HolidayCalendar {
+    // Independence Day (observed on the nearest weekday) and Labor Day
+    public static final HolidayCalendar DEFAULT = new HolidayCalendar("default", List.of(
+            HolidayRule.nearestWeekday(Month.JULY, 4),
+            HolidayRule.nthDayOfWeek(Month.SEPTEMBER, 1, DayOfWeek.MONDAY)));
+
+    private static final ConcurrentMap<String, HolidayCalendar> CALENDARS = new ConcurrentHashMap<>();
+
+    static {
+        register(DEFAULT);
+    }
+
+    private final String name;
+    private final List<HolidayRule> rules;
+    private final ConcurrentMap<Integer, CompiledYear> compiledYears = new ConcurrentHashMap<>();
+
+    // The sorted, distinct epoch days of a year's observed holidays, and the same split by the day of
+    // the week they fall on
+    private record CompiledYear(long[] all, long[] onWeekdays, long[] onWeekends) {}
+
+    public HolidayCalendar(String name, List<HolidayRule> rules) {
+        this.name = name;
+        this.rules = List.copyOf(rules);
+    }
+
+    // Make a calendar available to rental agreements by name. Stored agreements only record the name, and
+    // are priced again (ex, by AgreementAudit) with whatever is registered under it, so a name can never be
+    // given to different rules: register changed rules under a new name (ex, "us-2025").
+    public static void register(HolidayCalendar calendar) {
+        HolidayCalendar existing = CALENDARS.putIfAbsent(calendar.getName(), calendar);
+
+        if (existing != null && existing != calendar) {
+            throw new RuntimeException("A holiday calendar is already registered under the name \"" +
+                    calendar.getName() + "\".");
+        }
+    }
+
+    public static HolidayCalendar forName(String name) {
+        HolidayCalendar calendar = CALENDARS.get(name);
+
+        if (calendar == null) {
+            throw new RuntimeException("No holiday calendar is registered under the name \"" + name + "\".");
+        }
+
+        return calendar;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Count the observed holidays from the first date through the last date, inclusive
+    public int countHolidays(LocalDate first, LocalDate last) {
+        return countHolidays(first.toEpochDay(), last.toEpochDay());
+    }
+
+    public int countHolidays(long firstEpochDay, long lastEpochDay) {
+        return count(firstEpochDay, lastEpochDay, CompiledYear::all);
+    }
+
+    // Count only the holidays that fall on weekdays, on weekends, or both, from the first date through the
+    // last date, inclusive
+    public int countHolidays(long firstEpochDay, long lastEpochDay, boolean onWeekdays, boolean onWeekends) {
+        if (onWeekdays && onWeekends) {
+            return countHolidays(firstEpochDay, lastEpochDay);
+        }
+        if (!onWeekdays && !onWeekends) {
+            return 0;
+        }
+
+        return count(firstEpochDay, lastEpochDay, onWeekends ? CompiledYear::onWeekends : CompiledYear::onWeekdays);
+    }
+
+    // Count the days from the first through the last, inclusive, in the chosen array of each year
+    private int count(long firstEpochDay, long lastEpochDay, Function<CompiledYear, long[]> days) {
+        if (lastEpochDay < firstEpochDay) {
+            return 0;
+        }
+
+        int firstYear = LocalDate.ofEpochDay(firstEpochDay).getYear();
+        int lastYear = LocalDate.ofEpochDay(lastEpochDay).getYear();
+
+        if (firstYear == lastYear) {
+            long[] holidays = days.apply(compiledYear(firstYear));
+            return lowerBound(holidays, lastEpochDay + 1) - lowerBound(holidays, firstEpochDay);
+        }
+
+        long[] firstYearHolidays = days.apply(compiledYear(firstYear));
+        int count = firstYearHolidays.length - lowerBound(firstYearHolidays, firstEpochDay);
+
+        for (int year = firstYear + 1; year < lastYear; year++) {
+            count += days.apply(compiledYear(year)).length;
+        }
+
+        return count + lowerBound(days.apply(compiledYear(lastYear)), lastEpochDay + 1);
+    }
+
+    private static boolean isWeekend(long epochDay) {
+        // ISO day of week: Monday = 1 ... Sunday = 7
+        return Math.floorMod(epochDay + 3, 7L) + 1 >= 6;
+    }
+
+    private CompiledYear compiledYear(int year) {
+        return compiledYears.computeIfAbsent(year, this::compile);
+    }
+
+    private CompiledYear compile(int year) {
+        // A holiday can be observed in the neighbouring year (ex, New Year's Day on a Saturday),
+        // so evaluate the rules for the surrounding years and keep the dates that land in this one
+        long[] holidays = new long[rules.size() * 3];
+        int size = 0;
+
+        for (int ruleYear = year - 1; ruleYear <= year + 1; ruleYear++) {
+            for (HolidayRule rule : rules) {
+                LocalDate date = rule.observedDate(ruleYear);
+
+                if (date.getYear() == year) {
+                    holidays[size++] = date.toEpochDay();
+                }
+            }
+        }
+
+        Arrays.sort(holidays, 0, size);
+        long[] all = Arrays.stream(holidays, 0, size).distinct().toArray();
+        return new CompiledYear(all, Arrays.stream(all).filter(day -> !isWeekend(day)).toArray(),
+                Arrays.stream(all).filter(HolidayCalendar::isWeekend).toArray());
+    }
+
+    // Index of the first element that is not less than the key
+    private static int lowerBound(long[] values, long key) {
+        int low = 0;
+        int high = values.length;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            if (values[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+}
@@ -0,0 +1,43 @@
+package com.housejunction.sr0724;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.Month;
+
+import static java.time.temporal.TemporalAdjusters.dayOfWeekInMonth;
+import static java.time.temporal.TemporalAdjusters.lastInMonth;
+
+// A rule that yields the date a holiday is observed on in a given year
+@FunctionalInterface
+public interface HolidayRule {
+    LocalDate observedDate(int year);
+
+    // Fixed calendar date, always observed on that date (ex, Christmas Day on a weekend stays on the weekend)
+    static HolidayRule fixedDate(Month month, int dayOfMonth) {
+        return year -> LocalDate.of(year, month, dayOfMonth);
+    }
+
+    // Fixed calendar date, observed on Friday when it falls on Saturday and Monday when it falls on Sunday
+    static HolidayRule nearestWeekday(Month month, int dayOfMonth) {
+        return year -> {
+            LocalDate date = LocalDate.of(year, month, dayOfMonth);
+
+            if (date.getDayOfWeek() == DayOfWeek.SATURDAY) {
+                return date.minusDays(1);
+            } else if (date.getDayOfWeek() == DayOfWeek.SUNDAY) {
+                return date.plusDays(1);
+            }
+            return date;
+        };
+    }
+
+    // The nth given day of the week in a month (ex, the fourth Thursday of November)
+    static HolidayRule nthDayOfWeek(Month month, int ordinal, DayOfWeek dayOfWeek) {
+        return year -> LocalDate.of(year, month, 1).with(dayOfWeekInMonth(ordinal, dayOfWeek));
+    }
+
+    // The last given day of the week in a month (ex, the last Monday of May)
+    static HolidayRule lastDayOfWeek(Month month, DayOfWeek dayOfWeek) {
+        return year -> LocalDate.of(year, month, 1).with(lastInMonth(dayOfWeek));
+    }
+}
@@ -0,0 +1,81 @@
+package com.housejunction.sr0724;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counts and sample errors from a bulk import. Only the first few errors are kept
+// so that a file full of bad lines does not grow memory.
+public class ImportSummary {
+    private static final int MAX_ERROR_SAMPLES = 100;
+
+    private final AtomicLong linesRead = new AtomicLong();
+    private final AtomicLong agreementsStored = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final List<String> errorSamples = new ArrayList<>();
+    private long elapsedNanos;
+
+    void lineRead() {
+        linesRead.incrementAndGet();
+    }
+
+    void agreementsStored(int count) {
+        agreementsStored.addAndGet(count);
+    }
+
+    void error(long lineNumber, String message) {
+        errorCount.incrementAndGet();
+
+        synchronized (errorSamples) {
+            if (errorSamples.size() < MAX_ERROR_SAMPLES) {
+                errorSamples.add("Line " + lineNumber + ": " + message);
+            }
+        }
+    }
+
+    void finish(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public long getLinesRead() {
+        return linesRead.get();
+    }
+
+    public long getAgreementsStored() {
+        return agreementsStored.get();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    public List<String> getErrorSamples() {
+        synchronized (errorSamples) {
+            return Collections.unmodifiableList(new ArrayList<>(errorSamples));
+        }
+    }
+
+    public double getElapsedSeconds() {
+        return elapsedNanos / 1_000_000_000.0;
+    }
+
+    public double getLinesPerSecond() {
+        return elapsedNanos == 0 ? 0 : getLinesRead() / getElapsedSeconds();
+    }
+
+    public void print() {
+        System.out.printf("Lines read: %d%n", getLinesRead());
+        System.out.printf("Agreements stored: %d%n", getAgreementsStored());
+        System.out.printf("Errors: %d%n", getErrorCount());
+        System.out.printf("Elapsed time: %.3f s%n", getElapsedSeconds());
+        System.out.printf("Throughput: %.0f lines/s%n", getLinesPerSecond());
+
+        for (String error : getErrorSamples()) {
+            System.out.println(error);
+        }
+        if (getErrorCount() > MAX_ERROR_SAMPLES) {
+            System.out.printf("... and %d more errors%n", getErrorCount() - MAX_ERROR_SAMPLES);
+        }
+    }
+}
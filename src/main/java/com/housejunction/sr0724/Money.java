@@ -0,0 +1,72 @@
+package com.housejunction.sr0724;
+
+// Arithmetic and formatting for amounts held as a long number of cents
+public final class Money {
+    private Money() {}
+
+    // The given percent of an amount, rounded half up to the nearest cent
+    public static long percentOf(long cents, int percent) {
+        long scaled = cents * percent;
+        return scaled >= 0 ? (scaled + 50) / 100 : -((-scaled + 50) / 100);
+    }
+
+    public static float toDollars(long cents) {
+        return cents / 100f;
+    }
+
+    // Format cents the same way as the DecimalFormat pattern "#,##0.00"
+    public static String format(long cents) {
+        return append(new StringBuilder(16), cents).toString();
+    }
+
+    public static StringBuilder append(StringBuilder sb, long cents) {
+        if (cents < 0) {
+            sb.append('-');
+            cents = -cents;
+        }
+
+        long dollars = cents / 100;
+        int remainder = (int) (cents % 100);
+
+        appendGrouped(sb, dollars);
+        sb.append('.');
+        if (remainder < 10) {
+            sb.append('0');
+        }
+        return sb.append(remainder);
+    }
+
+    // Append cents as a plain decimal number with no grouping (ex, 1234.50), as used in JSON
+    public static StringBuilder appendDecimal(StringBuilder sb, long cents) {
+        if (cents < 0) {
+            sb.append('-');
+            cents = -cents;
+        }
+
+        int remainder = (int) (cents % 100);
+        sb.append(cents / 100).append('.');
+        if (remainder < 10) {
+            sb.append('0');
+        }
+        return sb.append(remainder);
+    }
+
+    private static void appendGrouped(StringBuilder sb, long dollars) {
+        if (dollars < 1000) {
+            sb.append(dollars);
+            return;
+        }
+
+        appendGrouped(sb, dollars / 1000);
+        sb.append(',');
+
+        int group = (int) (dollars % 1000);
+        if (group < 100) {
+            sb.append('0');
+        }
+        if (group < 10) {
+            sb.append('0');
+        }
+        sb.append(group);
+    }
+}
@@ -0,0 +1,83 @@
+package com.housejunction.sr0724;
+
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded, least-recently-used cache of calculated charges, so that repeating a quote costs a hash
+// lookup. Entries are keyed by a snapshot of the pricing they were calculated from, so a price change
+// can never be answered with an old price; ToolPricing and HolidayCalendar changes also evict the
+// entries they make stale, so they do not linger until pushed out.
+public class QuoteCache {
+    public static final int MAX_ENTRIES = 10_000;
+
+    // The parts of a ToolPricingVersion that a price depends on
+    public record PricingSnapshot(String toolType, long dailyChargeCents, boolean weekdayCharge,
+                                  boolean weekendCharge, boolean holidayCharge) {
+        public static PricingSnapshot of(ToolPricingVersion pricing) {
+            return new PricingSnapshot(pricing.getToolType(), pricing.getDailyChargeCents(),
+                    pricing.hasWeekdayCharge(), pricing.hasWeekendCharge(), pricing.hasHolidayCharge());
+        }
+    }
+
+    public record Key(PricingSnapshot pricing, LocalDate checkoutDate, int rentalDays, int discountPercent,
+                      String holidayCalendarName) {}
+
+    private static final Map<Key, ChargeSummary> entries = new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, ChargeSummary> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    // The cached charges for key, or null if they have not been calculated yet
+    public static ChargeSummary get(Key key) {
+        ChargeSummary charges;
+        synchronized (entries) {
+            charges = entries.get(key);
+        }
+
+        if (charges != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return charges;
+    }
+
+    public static void put(Key key, ChargeSummary charges) {
+        synchronized (entries) {
+            entries.put(key, charges);
+        }
+    }
+
+    // Drop every entry priced with the given tool type
+    public static void invalidatePricing(String toolType) {
+        synchronized (entries) {
+            entries.keySet().removeIf(key -> key.pricing().toolType().equals(toolType));
+        }
+    }
+
+    public static void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public static int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getMisses() {
+        return misses.sum();
+    }
+}
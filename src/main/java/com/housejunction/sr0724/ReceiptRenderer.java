@@ -0,0 +1,142 @@
+package com.housejunction.sr0724;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+// Renders rental agreement receipts. Each receipt is built in a reusable per-thread buffer and
+// then written to the destination in a single call, so a buffered writer or file channel sees one
+// write per receipt no matter how many lines it has.
+//
+// TEXT is the receipt printed at checkout. JSON is one compact object per line for downstream
+// systems, with ISO dates and amounts as decimal numbers.
+public final class ReceiptRenderer {
+    public enum Format {
+        TEXT,
+        JSON
+    }
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private static final ThreadLocal<StringBuilder> buffers = ThreadLocal.withInitial(() -> new StringBuilder(512));
+    private static final ThreadLocal<CharsetEncoder> encoders = ThreadLocal.withInitial(StandardCharsets.UTF_8::newEncoder);
+
+    private ReceiptRenderer() {}
+
+    public static String render(RentalAgreement agreement, Format format) {
+        return render(AgreementSummary.of(agreement), format);
+    }
+
+    public static void render(RentalAgreement agreement, Format format, Appendable out) throws IOException {
+        render(AgreementSummary.of(agreement), format, out);
+    }
+
+    public static void render(RentalAgreement agreement, Format format, ByteBuffer out) {
+        render(AgreementSummary.of(agreement), format, out);
+    }
+
+    // A summary prints the same receipt as the agreement it was read from
+    public static String render(AgreementSummary agreement, Format format) {
+        return build(agreement, format).toString();
+    }
+
+    public static void render(AgreementSummary agreement, Format format, Appendable out) throws IOException {
+        out.append(build(agreement, format));
+    }
+
+    // Encode the receipt as UTF-8 into the buffer, throwing BufferOverflowException if it does not fit
+    public static void render(AgreementSummary agreement, Format format, ByteBuffer out) {
+        CharsetEncoder encoder = encoders.get().reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(build(agreement, format)), out, true);
+
+        if (result.isOverflow()) {
+            throw new BufferOverflowException();
+        }
+        encoder.flush(out);
+    }
+
+    private static StringBuilder build(AgreementSummary agreement, Format format) {
+        StringBuilder sb = buffers.get();
+        sb.setLength(0);
+
+        if (format == Format.JSON) {
+            appendJson(sb, agreement);
+        } else {
+            appendText(sb, agreement);
+        }
+        return sb;
+    }
+
+    private static void appendText(StringBuilder sb, AgreementSummary agreement) {
+        sb.append("Tool code: ").append(agreement.toolCode()).append(LINE_SEPARATOR);
+        sb.append("Tool type: ").append(agreement.toolType()).append(LINE_SEPARATOR);
+        sb.append("Tool brand: ").append(agreement.toolBrand()).append(LINE_SEPARATOR);
+        sb.append("Rental days: ").append(agreement.rentalDays()).append(LINE_SEPARATOR);
+        appendShortDate(sb.append("Check out date: "), agreement.checkoutDate()).append(LINE_SEPARATOR);
+        appendShortDate(sb.append("Due date: "), agreement.dueDate()).append(LINE_SEPARATOR);
+        Money.append(sb.append("Daily rental charge: $"), agreement.dailyRentalChargeCents()).append(LINE_SEPARATOR);
+        sb.append("Charge days: ").append(agreement.chargeDays()).append(LINE_SEPARATOR);
+        Money.append(sb.append("Pre-discount charge: $"), agreement.preDiscountChargeCents()).append(LINE_SEPARATOR);
+        sb.append("Discount percent: ").append(agreement.discountPercent()).append('%').append(LINE_SEPARATOR);
+        Money.append(sb.append("Discount amount: $"), agreement.discountAmountCents()).append(LINE_SEPARATOR);
+        Money.append(sb.append("Final charge: $"), agreement.finalChargeCents()).append(LINE_SEPARATOR);
+    }
+
+    private static void appendJson(StringBuilder sb, AgreementSummary agreement) {
+        appendJsonString(sb.append("{\"toolCode\":"), agreement.toolCode());
+        appendJsonString(sb.append(",\"toolType\":"), agreement.toolType());
+        appendJsonString(sb.append(",\"toolBrand\":"), agreement.toolBrand());
+        sb.append(",\"rentalDays\":").append(agreement.rentalDays());
+        appendIsoDate(sb.append(",\"checkoutDate\":\""), agreement.checkoutDate()).append('"');
+        appendIsoDate(sb.append(",\"dueDate\":\""), agreement.dueDate()).append('"');
+        Money.appendDecimal(sb.append(",\"dailyRentalCharge\":"), agreement.dailyRentalChargeCents());
+        sb.append(",\"chargeDays\":").append(agreement.chargeDays());
+        Money.appendDecimal(sb.append(",\"preDiscountCharge\":"), agreement.preDiscountChargeCents());
+        sb.append(",\"discountPercent\":").append(agreement.discountPercent());
+        Money.appendDecimal(sb.append(",\"discountAmount\":"), agreement.discountAmountCents());
+        Money.appendDecimal(sb.append(",\"finalCharge\":"), agreement.finalChargeCents());
+        sb.append('}').append('\n');
+    }
+
+    // Same output as DateTimeFormatter.ofPattern("MM/dd/yy")
+    private static StringBuilder appendShortDate(StringBuilder sb, LocalDate date) {
+        appendTwoDigits(sb, date.getMonthValue()).append('/');
+        appendTwoDigits(sb, date.getDayOfMonth()).append('/');
+        return appendTwoDigits(sb, Math.floorMod(date.getYear(), 100));
+    }
+
+    private static StringBuilder appendIsoDate(StringBuilder sb, LocalDate date) {
+        int year = date.getYear();
+        if (year >= 0 && year < 1000) {
+            sb.append(year < 10 ? "000" : year < 100 ? "00" : "0");
+        }
+        sb.append(year).append('-');
+        appendTwoDigits(sb, date.getMonthValue()).append('-');
+        return appendTwoDigits(sb, date.getDayOfMonth());
+    }
+
+    private static StringBuilder appendTwoDigits(StringBuilder sb, int value) {
+        return sb.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    private static StringBuilder appendJsonString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"');
+    }
+}
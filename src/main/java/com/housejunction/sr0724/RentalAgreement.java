@@ -3,25 +3,39 @@ package com.housejunction.sr0724;
 import jakarta.persistence.*;
 import jakarta.validation.constraints.NotNull;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.text.DecimalFormat;
-import java.time.DayOfWeek;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
-
-import static java.time.temporal.TemporalAdjusters.firstInMonth;
 
 @Entity
-@Table(name = "rental_agreement")
+// Everything a receipt needs, fetched with the agreement in one joined select
+@NamedEntityGraph(name = RentalAgreement.RECEIPT_GRAPH,
+        attributeNodes = {
+                @NamedAttributeNode(value = "tool", subgraph = "tool"),
+                @NamedAttributeNode("pricingVersion")
+        },
+        subgraphs = @NamedSubgraph(name = "tool", attributeNodes = @NamedAttributeNode("toolPricing")))
+// The indexes serve the keyset-paginated reports in AgreementReports, which page in (checkout_date, id) order,
+// and the per-store reports of StoreShards
+@Table(name = "rental_agreement", indexes = {
+        @Index(name = "idx_rental_agreement_checkout_date", columnList = "checkout_date, id"),
+        @Index(name = "idx_rental_agreement_tool_code", columnList = "tool_code, checkout_date, id"),
+        @Index(name = "idx_rental_agreement_store_id", columnList = "store_id, checkout_date, id")
+})
 public class RentalAgreement {
+    static final int ID_ALLOCATION_SIZE = 50;
+    public static final String RECEIPT_GRAPH = "RentalAgreement.receipt";
+
+    // Ids come from a pooled sequence, so inserts only go to the sequence once every 50 agreements
     private @Id
-    @GeneratedValue
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "rental_agreement_id")
+    @SequenceGenerator(name = "rental_agreement_id", sequenceName = "rental_agreement_seq", allocationSize = ID_ALLOCATION_SIZE)
     @Column(name = "id")
     long id;
 
-    @ManyToOne
+    // Associations are lazy so that loading agreements never drags in their tools one select at a time;
+    // queries that need them fetch them through RECEIPT_GRAPH or a join
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "tool_code", nullable = false)
     private Tool tool;
 
@@ -31,43 +45,95 @@ public class RentalAgreement {
     @Column(name = "checkout_date")
     @NotNull private LocalDate checkoutDate;
 
-    @Column(name = "daily_rental_charge")
-    @NotNull private float dailyRentalCharge;
+    // The price agreed on. Versions never change, so this keeps the agreement's price even after
+    // the tool type is repriced.
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "pricing_version_id", nullable = false)
+    private ToolPricingVersion pricingVersion;
 
-    @Column(name = "weekday_charge")
-    @NotNull private boolean weekdayCharge;
+    @Column(name = "discount_percent")
+    @NotNull private int discountPercent;
 
-    @Column(name = "weekend_charge")
-    @NotNull private boolean weekendCharge;
+    @Column(name = "holiday_calendar")
+    @NotNull private String holidayCalendarName;
 
-    @Column(name = "holiday_charge")
-    @NotNull private boolean holidayCharge;
+    @Embedded
+    private ChargeSummary chargeSummary;
 
-    @Column(name = "discount_percent")
-    @NotNull private int discountPercent;
+    // The store that made the rental, when agreements are split by store (see StoreShards); null otherwise
+    @Column(name = "store_id")
+    private Integer storeId;
+
+    @Transient
+    private HolidayCalendar holidayCalendar;
 
     public RentalAgreement() {}
 
     public RentalAgreement(Tool tool, int rentalDays, LocalDate checkoutDate, int discountPercent) {
+        this(tool, rentalDays, checkoutDate, discountPercent, HolidayCalendar.DEFAULT);
+    }
+
+    public RentalAgreement(Tool tool, int rentalDays, LocalDate checkoutDate, int discountPercent,
+                           HolidayCalendar holidayCalendar) {
+        this(tool, rentalDays, checkoutDate, discountPercent, holidayCalendar, null);
+    }
+
+    // Charges that were already calculated for the same pricing and terms (see QuoteCache) are used
+    // as they are; otherwise they are calculated here
+    RentalAgreement(Tool tool, int rentalDays, LocalDate checkoutDate, int discountPercent,
+                    HolidayCalendar holidayCalendar, ChargeSummary chargeSummary) {
         this.tool = tool;
         this.rentalDays = rentalDays;
         this.checkoutDate = checkoutDate;
         this.discountPercent = discountPercent;
+        this.holidayCalendar = holidayCalendar;
+        this.holidayCalendarName = holidayCalendar.getName();
+
+        // Rentals are priced as of their checkout date
+        this.pricingVersion = tool.getToolPricing().getVersion(checkoutDate);
 
-        // Setting the daily rental charge and whether charges apply on weekdays,
-        // weekends, and/or holidays will maintain the price originally agreed on,
-        // even if the price changes in the tool_pricing table in the future
-        ToolPricing pricing = tool.getToolPricing();
-        this.dailyRentalCharge = pricing.getDailyCharge();
-        this.weekdayCharge = pricing.hasWeekdayCharge();
-        this.weekendCharge = pricing.hasWeekendCharge();
-        this.holidayCharge = pricing.hasHolidayCharge();
+        this.chargeSummary = chargeSummary != null ? chargeSummary : calculateChargeSummary();
+    }
+
+    // Agreements stored without their charges are calculated once when loaded
+    @PostLoad
+    private void loadChargeSummary() {
+        if (this.chargeSummary == null) {
+            this.chargeSummary = calculateChargeSummary();
+        }
+    }
+
+    private ChargeSummary calculateChargeSummary() {
+        return ChargeSummary.calculate(getChargeDays(), getDailyRentalChargeCents(), this.discountPercent);
+    }
+
+    // Calculate the charges again from the agreement's pricing version, ignoring the stored ones
+    public ChargeSummary recalculateChargeSummary() {
+        return calculateChargeSummary();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    // Forget the id handed out to an insert that was rolled back, so that storing the agreement again
+    // inserts it rather than treating it as detached
+    void clearId() {
+        this.id = 0;
     }
 
     public Tool getTool() {
         return tool;
     }
 
+    public Integer getStoreId() {
+        return storeId;
+    }
+
+    void setStoreId(Integer storeId) {
+        this.storeId = storeId;
+    }
+
     public int getRentalDays() {
         return rentalDays;
     }
@@ -80,122 +146,122 @@ public class RentalAgreement {
         return checkoutDate.plusDays(rentalDays);
     }
 
+    public ToolPricingVersion getPricingVersion() {
+        return pricingVersion;
+    }
+
+    public long getDailyRentalChargeCents() {
+        return pricingVersion.getDailyChargeCents();
+    }
+
+    // The daily rental charge in dollars, for display only
     public float getDailyRentalCharge() {
-        return dailyRentalCharge;
+        return Money.toDollars(getDailyRentalChargeCents());
     }
 
     public boolean hasWeekdayCharge() {
-        return weekdayCharge;
+        return pricingVersion.hasWeekdayCharge();
     }
 
     public boolean hasWeekendCharge() {
-        return weekendCharge;
+        return pricingVersion.hasWeekendCharge();
     }
 
     public boolean hasHolidayCharge() {
-        return holidayCharge;
+        return pricingVersion.hasHolidayCharge();
+    }
+
+    public String getHolidayCalendarName() {
+        return holidayCalendarName;
+    }
+
+    public HolidayCalendar getHolidayCalendar() {
+        if (holidayCalendar == null) {
+            holidayCalendar = HolidayCalendar.forName(holidayCalendarName);
+        }
+        return holidayCalendar;
     }
 
     // Calculate chargeDays by identifying non-charge days and subtracting those from rental days
     public int getChargeDays() {
-        LocalDate dueDate = getDueDate();
+        // Charge days run from the day after checkout through the due date, inclusive
+        long firstDay = this.checkoutDate.toEpochDay() + 1;
 
         int nonChargeDays = 0;
 
-        // Check which weekdays or weekends fall within the period
-        if (!this.weekdayCharge || !this.weekendCharge) {
-            LocalDate date = this.checkoutDate;
-            HashMap<String, Integer> dayOfWeekCounts = new HashMap<>();
-
-            String weekdays = "weekdays";
-            String weekends = "weekends";
-            dayOfWeekCounts.put(weekdays, 0);
-            dayOfWeekCounts.put(weekends, 0);
-
-            for (int i = 0; i < this.rentalDays; i++) {
-                date = date.plusDays(1);
-                DayOfWeek dayOfWeek = date.getDayOfWeek();
-
-                if (dayOfWeek == DayOfWeek.SATURDAY || dayOfWeek == DayOfWeek.SUNDAY) {
-                    dayOfWeekCounts.put(weekends, dayOfWeekCounts.get(weekends) + 1);
-                } else {
-                    dayOfWeekCounts.put(weekdays, dayOfWeekCounts.get(weekdays) + 1);
-                }
-            }
+        // Count weekdays and weekends from whole weeks, then the leftover days
+        if (!hasWeekdayCharge() || !hasWeekendCharge()) {
+            int weekends = countWeekendDays(firstDay, this.rentalDays);
+            int weekdays = this.rentalDays - weekends;
 
-            if (!this.weekdayCharge) {
-                nonChargeDays += dayOfWeekCounts.get(weekdays);
+            if (!hasWeekdayCharge()) {
+                nonChargeDays += weekdays;
             }
 
-            if (!this.weekendCharge) {
-                nonChargeDays += dayOfWeekCounts.get(weekends);
+            if (!hasWeekendCharge()) {
+                nonChargeDays += weekends;
             }
         }
 
-        // Check which holidays (Independence Day or Labor Day) fall within the period
-        if (!this.holidayCharge) {
-            int yearDiff = dueDate.getYear() - this.checkoutDate.getYear();
-            for (int i = 0; i < yearDiff + 1; i++) {
-                int thisYear = this.checkoutDate.plusYears(i).getYear();
-
-                LocalDate independenceDay = LocalDate.of(thisYear, 7, 4);
-
-                if (independenceDay.getDayOfWeek() == DayOfWeek.SATURDAY) {
-                    independenceDay = independenceDay.minusDays(1);
-                } else if (independenceDay.getDayOfWeek() == DayOfWeek.SUNDAY) {
-                    independenceDay = independenceDay.plusDays(1);
-                }
+        // Count holidays after the checkout date and before the day preceding the due date. A holiday on a
+        // day that is already not charged (ex, a fixed-date holiday on a weekend) is not taken off twice.
+        if (!hasHolidayCharge()) {
+            long lastDay = this.checkoutDate.toEpochDay() + this.rentalDays - 2;
+            nonChargeDays += getHolidayCalendar().countHolidays(firstDay, lastDay, hasWeekdayCharge(),
+                    hasWeekendCharge());
+        }
 
-                if (independenceDay.isAfter(this.checkoutDate)
-                        && independenceDay.plusDays(1).isBefore(dueDate)) {
-                    nonChargeDays += 1;
-                }
+        return this.rentalDays - nonChargeDays;
+    }
 
-                LocalDate laborDay = LocalDate.of(thisYear, 9, 1).with(firstInMonth(DayOfWeek.MONDAY));
+    // Number of Saturdays and Sundays among the given number of days starting at firstDay
+    private static int countWeekendDays(long firstDay, int days) {
+        int weekends = (days / 7) * 2;
+        int remainder = days % 7;
 
-                if (laborDay.isAfter(this.checkoutDate) && laborDay.plusDays(1).isBefore(dueDate)) {
-                    nonChargeDays += 1;
-                }
+        // ISO day of week: Monday = 1 ... Sunday = 7
+        int dayOfWeek = (int) Math.floorMod(firstDay + 3, 7L) + 1;
+        for (int i = 0; i < remainder; i++) {
+            if (dayOfWeek >= 6) {
+                weekends++;
             }
+            dayOfWeek = dayOfWeek == 7 ? 1 : dayOfWeek + 1;
         }
 
-        return this.rentalDays - nonChargeDays;
+        return weekends;
+    }
+
+    public ChargeSummary getChargeSummary() {
+        return chargeSummary;
     }
 
-    public float getPreDiscountCharge() {
-        BigDecimal unroundedAmount = new BigDecimal(dailyRentalCharge * getChargeDays());
-        return unroundedAmount.setScale(2, RoundingMode.HALF_UP).floatValue();
+    public long getPreDiscountChargeCents() {
+        return chargeSummary.getPreDiscountChargeCents();
     }
 
     public int getDiscountPercent() {
         return discountPercent;
     }
 
-    public float getDiscountAmount() {
-        BigDecimal unroundedAmount = new BigDecimal(getPreDiscountCharge() * discountPercent / 100);
-        return unroundedAmount.setScale(2, RoundingMode.HALF_UP).floatValue();
+    public long getDiscountAmountCents() {
+        return chargeSummary.getDiscountAmountCents();
     }
 
-    public float getFinalCharge() {
-        return getPreDiscountCharge() - getDiscountAmount();
+    public long getFinalChargeCents() {
+        return chargeSummary.getFinalChargeCents();
     }
 
     public void print() {
-        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("MM/dd/yy");
-        DecimalFormat currencyFormat = new DecimalFormat("#,##0.00");
-
-        System.out.printf("Tool code: %s%n", this.tool.getCode());
-        System.out.printf("Tool type: %s%n", this.tool.getType());
-        System.out.printf("Tool brand: %s%n", this.tool.getBrand());
-        System.out.printf("Rental days: %d%n", this.rentalDays);
-        System.out.printf("Check out date: %s%n", this.checkoutDate.format(dtf));
-        System.out.printf("Due date: %s%n", getDueDate().format(dtf));
-        System.out.printf("Daily rental charge: $%s%n", currencyFormat.format(this.dailyRentalCharge));
-        System.out.printf("Charge days: %d%n", getChargeDays());
-        System.out.printf("Pre-discount charge: $%s%n", currencyFormat.format(getPreDiscountCharge()));
-        System.out.printf("Discount percent: %d%%%n", this.discountPercent);
-        System.out.printf("Discount amount: $%s%n", currencyFormat.format(getDiscountAmount()));
-        System.out.printf("Final charge: $%s%n", currencyFormat.format(getFinalCharge()));
+        try {
+            ReceiptRenderer.render(this, ReceiptRenderer.Format.TEXT, System.out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The agreement details as printed on the receipt
+    public String toReceipt() {
+        return ReceiptRenderer.render(this, ReceiptRenderer.Format.TEXT);
     }
 
 }
@@ -0,0 +1,100 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.Session;
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.List;
+
+// The column values of one rental_agreement row. Used to copy agreements in and out of the
+// table in bulk (ex, replaying the journal) without going through the persistence context.
+//
+// pricingEffectiveFrom is not a column: with the tool code it identifies the pricing version in a
+// database where the version ids differ (ex, a fresh in-memory database after a restart).
+public record RentalAgreementRow(long id, String toolCode, int rentalDays, LocalDate checkoutDate,
+                                 long pricingVersionId, LocalDate pricingEffectiveFrom, int discountPercent,
+                                 String holidayCalendarName, int chargeDays, long preDiscountChargeCents,
+                                 long discountAmountCents, long finalChargeCents, Integer storeId) {
+
+    private static final String INSERT_SQL = "insert into rental_agreement (id, tool_code, rental_days," +
+            " checkout_date, pricing_version_id, discount_percent, holiday_calendar, charge_days," +
+            " pre_discount_charge_cents, discount_amount_cents, final_charge_cents, store_id)" +
+            " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    public static RentalAgreementRow of(RentalAgreement agreement) {
+        ChargeSummary summary = agreement.getChargeSummary();
+        ToolPricingVersion pricing = agreement.getPricingVersion();
+
+        return new RentalAgreementRow(agreement.getId(), agreement.getTool().getCode(), agreement.getRentalDays(),
+                agreement.getCheckoutDate(), pricing.getId(), pricing.getEffectiveFrom(),
+                agreement.getDiscountPercent(), agreement.getHolidayCalendarName(), summary.getChargeDays(),
+                summary.getPreDiscountChargeCents(), summary.getDiscountAmountCents(), summary.getFinalChargeCents(),
+                agreement.getStoreId());
+    }
+
+    public RentalAgreementRow withPricingVersionId(long pricingVersionId) {
+        return new RentalAgreementRow(id, toolCode, rentalDays, checkoutDate, pricingVersionId, pricingEffectiveFrom,
+                discountPercent, holidayCalendarName, chargeDays, preDiscountChargeCents, discountAmountCents,
+                finalChargeCents, storeId);
+    }
+
+    public RentalAgreementRow withId(long id) {
+        return new RentalAgreementRow(id, toolCode, rentalDays, checkoutDate, pricingVersionId, pricingEffectiveFrom,
+                discountPercent, holidayCalendarName, chargeDays, preDiscountChargeCents, discountAmountCents,
+                finalChargeCents, storeId);
+    }
+
+    // Insert rows with their existing ids in JDBC batches, within the session's current transaction
+    public static void insertAll(Session session, List<RentalAgreementRow> rows) {
+        session.doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_SQL)) {
+                int batched = 0;
+
+                for (RentalAgreementRow row : rows) {
+                    statement.setLong(1, row.id());
+                    statement.setString(2, row.toolCode());
+                    statement.setInt(3, row.rentalDays());
+                    statement.setDate(4, Date.valueOf(row.checkoutDate()));
+                    statement.setLong(5, row.pricingVersionId());
+                    statement.setInt(6, row.discountPercent());
+                    statement.setString(7, row.holidayCalendarName());
+                    statement.setInt(8, row.chargeDays());
+                    statement.setLong(9, row.preDiscountChargeCents());
+                    statement.setLong(10, row.discountAmountCents());
+                    statement.setLong(11, row.finalChargeCents());
+                    if (row.storeId() == null) {
+                        statement.setNull(12, Types.INTEGER);
+                    } else {
+                        statement.setInt(12, row.storeId());
+                    }
+                    statement.addBatch();
+
+                    if (++batched % 1000 == 0) {
+                        statement.executeBatch();
+                    }
+                }
+
+                statement.executeBatch();
+            }
+        });
+    }
+
+    // Move the id sequence past every stored id, so new agreements never collide with inserted rows.
+    // The pooled optimizer hands out up to one allocation below the value it reads, hence the margin.
+    public static void advanceIdSequence(Session session) {
+        Long maxId = session.createSelectionQuery("select max(id) from RentalAgreement", Long.class)
+                .getSingleResult();
+
+        if (maxId != null) {
+            // Only ever move the sequence forward, so blocks already handed out to a running
+            // SessionFactory's id optimizer cannot overlap the blocks that follow
+            long next = session.createNativeQuery("select next value for rental_agreement_seq", Long.class)
+                    .getSingleResult();
+            long restart = Math.max(next + 1, maxId + RentalAgreement.ID_ALLOCATION_SIZE + 1);
+            session.createNativeMutationQuery("alter sequence rental_agreement_seq restart with " + restart)
+                    .executeUpdate();
+        }
+    }
+}
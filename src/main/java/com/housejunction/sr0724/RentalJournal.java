@@ -0,0 +1,484 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+// Append-only journal of committed rental agreements, used to rebuild the in-memory database after a
+// restart. Enable it with -Dsr0724.journal=<file>.
+//
+// Writers append to a shared buffer and wait; a single flusher thread writes everything buffered so
+// far and forces it to disk once, so concurrent checkouts share one fsync (group commit). A checkout
+// returns only after its agreement is on disk, or has been reported as unjournaled if the journal
+// could not be written (see recordCommitted).
+//
+// File layout: the 8-byte magic "SR0724J3", then records of
+//   int payload length | int CRC32C of the payload | payload
+// where the payload holds the rental_agreement columns (see writeRow). The pricing version is recorded by
+// its effective date rather than its id, since ids can differ between databases. A torn or corrupt record at
+// the tail, left by a crash mid-write, ends the replay and is cut off.
+public class RentalJournal implements AutoCloseable {
+    public static final String JOURNAL_PROPERTY = "sr0724.journal";
+
+    private static final byte[] MAGIC = "SR0724J3".getBytes(StandardCharsets.US_ASCII);
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_PAYLOAD_SIZE = 1 << 16;
+    static final int REPLAY_CHUNK_SIZE = 500;
+
+    private static volatile RentalJournal active;
+    private static final LongAdder unjournaled = new LongAdder();
+
+    private final FileChannel channel;
+    private final Thread flusher;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pendingWrites = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+
+    // Guarded by lock
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private long appendedSequence;
+    private long durableSequence;
+    private IOException failure;
+    private boolean closed;
+
+    private long syncCount;
+
+    private RentalJournal(FileChannel channel) {
+        this.channel = channel;
+        this.flusher = Thread.ofPlatform().name("rental-journal-flusher").daemon().start(this::flushLoop);
+    }
+
+    // Open the journal for appending, creating it if needed and cutting off any torn tail
+    public static RentalJournal open(Path file) {
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+
+            if (channel.size() == 0) {
+                channel.write(ByteBuffer.wrap(MAGIC));
+                channel.force(true);
+            } else {
+                long validLength = scan(channel, null);
+                channel.truncate(validLength);
+            }
+            channel.position(channel.size());
+
+            return new RentalJournal(channel);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the rental journal " + file, e);
+        }
+    }
+
+    // The journal that committed agreements are recorded to, or null when journaling is off
+    public static RentalJournal getActive() {
+        return active;
+    }
+
+    public static void setActive(RentalJournal journal) {
+        active = journal;
+    }
+
+    // Record committed agreements in the active journal, if any, and wait until they are on disk. The
+    // agreements are already stored, so a journal that cannot be written does not undo or fail them:
+    // they are reported and counted as unjournaled instead, and returns false.
+    static boolean recordCommitted(Collection<RentalAgreement> agreements) {
+        RentalJournal journal = active;
+
+        if (journal == null || agreements.isEmpty()) {
+            return true;
+        }
+
+        List<RentalAgreementRow> rows = new ArrayList<>(agreements.size());
+        List<Long> ids = new ArrayList<>(agreements.size());
+        for (RentalAgreement agreement : agreements) {
+            rows.add(RentalAgreementRow.of(agreement));
+            ids.add(agreement.getId());
+        }
+
+        try {
+            journal.append(rows);
+            return true;
+        } catch (RuntimeException e) {
+            unjournaled.add(agreements.size());
+            System.out.println("Rental agreements " + ids + " were stored but not journaled: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // How many stored agreements could not be recorded in the journal, and so would be lost if the
+    // database were rebuilt from it
+    public static long getUnjournaledCount() {
+        return unjournaled.sum();
+    }
+
+    // Append rows and block until they have been forced to disk
+    public void append(List<RentalAgreementRow> rows) {
+        ByteBuffer payload = ByteBuffer.allocate(MAX_PAYLOAD_SIZE);
+        long sequence;
+
+        lock.lock();
+        try {
+            if (closed) {
+                throw new RuntimeException("The rental journal is closed.");
+            }
+
+            for (RentalAgreementRow row : rows) {
+                payload.clear();
+                writeRow(payload, row);
+                payload.flip();
+
+                CRC32C crc = new CRC32C();
+                crc.update(payload.duplicate());
+
+                ensureCapacity(RECORD_HEADER_SIZE + payload.remaining());
+                pending.putInt(payload.remaining()).putInt((int) crc.getValue()).put(payload);
+            }
+
+            sequence = ++appendedSequence;
+            pendingWrites.signal();
+
+            while (durableSequence < sequence && failure == null) {
+                durable.awaitUninterruptibly();
+            }
+
+            if (durableSequence < sequence) {
+                throw new UncheckedIOException("Could not write to the rental journal", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // How many times the journal has been forced to disk
+    public long getSyncCount() {
+        lock.lock();
+        try {
+            return syncCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        ByteBuffer writing = ByteBuffer.allocate(pending.capacity());
+
+        while (true) {
+            long sequence;
+
+            lock.lock();
+            try {
+                while (pending.position() == 0 && !closed) {
+                    pendingWrites.awaitUninterruptibly();
+                }
+
+                if (pending.position() == 0) {
+                    return;
+                }
+
+                // Swap buffers so appenders can keep filling one while the other is written
+                ByteBuffer filled = pending;
+                if (writing.capacity() < filled.capacity()) {
+                    writing = ByteBuffer.allocate(filled.capacity());
+                }
+                pending = writing;
+                pending.clear();
+                writing = filled;
+                sequence = appendedSequence;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                writing.flip();
+                while (writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            writing.clear();
+
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durableSequence = sequence;
+                    syncCount++;
+                }
+                durable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (pending.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes));
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+    }
+
+    // Wait for buffered records to reach disk, then stop the flusher
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            pendingWrites.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            flusher.join();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        if (active == this) {
+            active = null;
+        }
+    }
+
+    // Insert every agreement in the journal into rental_agreement, skipping ids that are already
+    // stored, and return how many rows were inserted. Records are streamed and inserted a chunk at a
+    // time, each chunk in its own transaction, so replay takes the same memory however long the
+    // journal grows. If it fails part way, running it again carries on after the committed chunks.
+    public static int replay(Path file, SessionFactory sessionFactory) {
+        return replay(file, sessionFactory, REPLAY_CHUNK_SIZE);
+    }
+
+    static int replay(Path file, SessionFactory sessionFactory, int chunkSize) {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             Session session = sessionFactory.openSession()) {
+            // Pricing version ids by tool code and effective date
+            Map<String, Long> versionIds = new HashMap<>();
+            session.createSelectionQuery("select t.code, v.effectiveFrom, v.id from Tool t, ToolPricingVersion v" +
+                            " where v.toolType = t.toolPricing.toolType", Object[].class)
+                    .getResultList()
+                    .forEach(version -> versionIds.put(version[0] + "@" + version[1], (Long) version[2]));
+
+            Replay replay = new Replay(session, versionIds, chunkSize);
+            try {
+                scan(channel, replay);
+                replay.insertChunk();
+            } finally {
+                // The rows were inserted behind Hibernate's back
+                if (replay.inserted > 0) {
+                    ToolAvailability.rebuild(sessionFactory);
+                }
+            }
+            return replay.inserted;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the rental journal " + file, e);
+        }
+    }
+
+    // Collects replayed records into chunks and inserts each chunk's missing rows in one transaction
+    private static class Replay implements Consumer<RentalAgreementRow> {
+        private final Session session;
+        private final Map<String, Long> versionIds;
+        private final int chunkSize;
+        // A later record for the same id in a chunk replaces an earlier one
+        private final Map<Long, RentalAgreementRow> chunk = new LinkedHashMap<>();
+        private int inserted;
+
+        Replay(Session session, Map<String, Long> versionIds, int chunkSize) {
+            this.session = session;
+            this.versionIds = versionIds;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public void accept(RentalAgreementRow row) {
+            chunk.put(row.id(), row);
+
+            if (chunk.size() == chunkSize) {
+                insertChunk();
+            }
+        }
+
+        void insertChunk() {
+            if (chunk.isEmpty()) {
+                return;
+            }
+
+            Transaction transaction = session.beginTransaction();
+            try {
+                Set<Long> stored = new HashSet<>(session
+                        .createSelectionQuery("select id from RentalAgreement where id in :ids", Long.class)
+                        .setParameter("ids", chunk.keySet())
+                        .getResultList());
+
+                List<RentalAgreementRow> missing = new ArrayList<>(chunk.size());
+                for (RentalAgreementRow row : chunk.values()) {
+                    if (!stored.contains(row.id())) {
+                        Long versionId = versionIds.get(row.toolCode() + "@" + row.pricingEffectiveFrom());
+                        if (versionId == null) {
+                            throw new RuntimeException("Agreement " + row.id() + " in the journal was priced with a "
+                                    + row.toolCode() + " price from " + row.pricingEffectiveFrom()
+                                    + " that is not in the catalog.");
+                        }
+                        missing.add(row.withPricingVersionId(versionId));
+                    }
+                }
+
+                RentalAgreementRow.insertAll(session, missing);
+                RentalAgreementRow.advanceIdSequence(session);
+                transaction.commit();
+                inserted += missing.size();
+            } catch (RuntimeException e) {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+                throw e;
+            }
+
+            chunk.clear();
+            session.clear();
+        }
+    }
+
+    // Read records from the start of the file, passing each to rows if it is not null, and return the
+    // length of the valid prefix
+    private static long scan(FileChannel channel, Consumer<RentalAgreementRow> rows) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+        channel.read(magic, 0);
+        if (magic.position() < MAGIC.length || !magic.flip().equals(ByteBuffer.wrap(MAGIC))) {
+            throw new IOException("Not a rental journal: the file does not start with " +
+                    new String(MAGIC, StandardCharsets.US_ASCII));
+        }
+
+        long position = MAGIC.length;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        ByteBuffer payload = ByteBuffer.allocate(MAX_PAYLOAD_SIZE);
+
+        while (true) {
+            header.clear();
+            if (readFully(channel, header, position) < RECORD_HEADER_SIZE) {
+                return position;
+            }
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+
+            if (length <= 0 || length > MAX_PAYLOAD_SIZE) {
+                return position;
+            }
+
+            payload.clear().limit(length);
+            if (readFully(channel, payload, position + RECORD_HEADER_SIZE) < length) {
+                return position;
+            }
+            payload.flip();
+
+            CRC32C crc = new CRC32C();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return position;
+            }
+
+            if (rows != null) {
+                rows.accept(readRow(payload));
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static void writeRow(ByteBuffer out, RentalAgreementRow row) {
+        out.putLong(row.id());
+        writeString(out, row.toolCode());
+        out.putInt(row.rentalDays());
+        out.putLong(row.checkoutDate().toEpochDay());
+        out.putLong(row.pricingEffectiveFrom().toEpochDay());
+        out.putInt(row.discountPercent());
+        writeString(out, row.holidayCalendarName());
+        out.putInt(row.chargeDays());
+        out.putLong(row.preDiscountChargeCents());
+        out.putLong(row.discountAmountCents());
+        out.putLong(row.finalChargeCents());
+        // The store the agreement was checked out at, if any, as a presence byte and the id
+        out.put((byte) (row.storeId() == null ? 0 : 1));
+        out.putInt(row.storeId() == null ? 0 : row.storeId());
+    }
+
+    private static RentalAgreementRow readRow(ByteBuffer in) {
+        long id = in.getLong();
+        String toolCode = readString(in);
+        int rentalDays = in.getInt();
+        LocalDate checkoutDate = LocalDate.ofEpochDay(in.getLong());
+        LocalDate pricingEffectiveFrom = LocalDate.ofEpochDay(in.getLong());
+        int discountPercent = in.getInt();
+        String holidayCalendarName = readString(in);
+        int chargeDays = in.getInt();
+        long preDiscountChargeCents = in.getLong();
+        long discountAmountCents = in.getLong();
+        long finalChargeCents = in.getLong();
+        boolean hasStoreId = in.get() != 0;
+        int storeId = in.getInt();
+
+        // The version id is looked up when the row is replayed
+        return new RentalAgreementRow(id, toolCode, rentalDays, checkoutDate, 0, pricingEffectiveFrom,
+                discountPercent, holidayCalendarName, chargeDays, preDiscountChargeCents, discountAmountCents,
+                finalChargeCents, hasStoreId ? storeId : null);
+    }
+
+    private static void writeString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[Short.toUnsignedInt(in.getShort())];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
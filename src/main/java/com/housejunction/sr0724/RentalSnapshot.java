@@ -0,0 +1,450 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.zip.CRC32C;
+
+// A copy of the whole database (tool pricings, pricing versions, tools and rental agreements) in one compact
+// columnar file, so that a fresh in-memory database can be refilled at startup with bulk inserts instead of
+// replaying agreements one record at a time. With -Dsr0724.snapshot=<file>, an empty database is restored from
+// the file on startup; --snapshot <file> writes one. Agreements stored while a snapshot is being written may
+// be left out of it, so keep the journal on (see RentalJournal) to restore them.
+//
+// File layout: the 8-byte magic "SR0724S2", then blocks of
+//   int payload length | int CRC32C of the payload | payload
+// and finally a trailer of
+//   long offset of the catalog block | long number of agreements | the magic again
+// The agreements come first, in id order, BLOCK_ROWS to a block. Each block holds its row count and then one
+// column after another: ids, tool codes, rental days, checkout dates (epoch days), pricing version ids,
+// discount percents, holiday calendars, charge days, the pre-discount, discount and final charges, and store ids
+// (a byte that is 1 when the row has one, then an int). String columns are dictionary encoded, with indexes only
+// as wide as the block's dictionary needs. The catalog
+// block is written after the agreements, so it holds every pricing version and tool they refer to.
+//
+// Restore memory-maps each block, checks its CRC, and inserts its rows in JDBC batches, keeping every id. It
+// runs in one transaction, so a damaged file leaves the database empty.
+public class RentalSnapshot {
+    public static final String SNAPSHOT_PROPERTY = "sr0724.snapshot";
+
+    static final int BLOCK_ROWS = 1 << 15;
+
+    private static final byte[] MAGIC = "SR0724S2".getBytes(StandardCharsets.US_ASCII);
+    private static final int BLOCK_HEADER_SIZE = 8;
+    private static final int TRAILER_SIZE = 16 + MAGIC.length;
+
+    // Bytes per agreement, not counting the string columns
+    private static final int FIXED_ROW_SIZE = 8 + 4 + 4 + 8 + 1 + 4 + 8 + 8 + 8 + 1 + 4;
+
+    private static final String SELECT_AGREEMENTS_SQL = "select id, tool_code, rental_days, checkout_date," +
+            " pricing_version_id, discount_percent, holiday_calendar, charge_days, pre_discount_charge_cents," +
+            " discount_amount_cents, final_charge_cents, store_id from rental_agreement order by id";
+
+    // The number of pricing versions, tools and agreements in a snapshot
+    public record Result(int pricingVersions, int tools, long agreements) {}
+
+    // Write a snapshot of the database to file, replacing it only once the new snapshot is complete
+    public static Result write(SessionFactory sessionFactory, Path file) {
+        Path partial = file.resolveSibling(file.getFileName() + ".partial");
+
+        try {
+            Result result;
+            try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                writeFully(channel, ByteBuffer.wrap(MAGIC));
+                result = sessionFactory.fromSession(session -> session.doReturningWork(connection -> {
+                    try {
+                        return write(connection, channel);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+                channel.force(true);
+            }
+
+            Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return result;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write the rental snapshot " + file, e);
+        } catch (UncheckedIOException e) {
+            throw new UncheckedIOException("Could not write the rental snapshot " + file, e.getCause());
+        }
+    }
+
+    private static Result write(Connection connection, FileChannel channel) throws SQLException, IOException {
+        List<RentalAgreementRow> block = new ArrayList<>(BLOCK_ROWS);
+        long agreements = 0;
+
+        try (Statement statement = connection.createStatement()) {
+            statement.setFetchSize(BLOCK_ROWS);
+
+            try (ResultSet result = statement.executeQuery(SELECT_AGREEMENTS_SQL)) {
+                while (result.next()) {
+                    // The snapshot keeps pricing version ids, so the effective date is not needed
+                    block.add(new RentalAgreementRow(result.getLong(1), result.getString(2), result.getInt(3),
+                            result.getDate(4).toLocalDate(), result.getLong(5), null, result.getInt(6),
+                            result.getString(7), result.getInt(8), result.getLong(9), result.getLong(10),
+                            result.getLong(11), result.getObject(12, Integer.class)));
+
+                    if (block.size() == BLOCK_ROWS) {
+                        writeBlock(channel, encodeAgreements(block));
+                        agreements += block.size();
+                        block.clear();
+                    }
+                }
+            }
+        }
+
+        if (!block.isEmpty()) {
+            writeBlock(channel, encodeAgreements(block));
+            agreements += block.size();
+        }
+
+        // Read after the agreements, so every version and tool they refer to is included
+        CatalogLoader.CatalogRows catalog = CatalogLoader.readAll(connection);
+        long catalogOffset = channel.position();
+        writeBlock(channel, encodeCatalog(catalog));
+
+        writeFully(channel, ByteBuffer.allocate(TRAILER_SIZE).putLong(catalogOffset).putLong(agreements).put(MAGIC)
+                .flip());
+
+        return new Result(catalog.versions().size(), catalog.tools().size(), agreements);
+    }
+
+    // Fill an empty database from a snapshot
+    public static Result restore(SessionFactory sessionFactory, Path file) {
+        Result result;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < MAGIC.length + TRAILER_SIZE) {
+                throw new IOException("Not a rental snapshot: the file is too short");
+            }
+
+            ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_SIZE, TRAILER_SIZE);
+            long catalogOffset = trailer.getLong();
+            long agreements = trailer.getLong();
+            if (!channel.map(FileChannel.MapMode.READ_ONLY, 0, MAGIC.length).equals(ByteBuffer.wrap(MAGIC))
+                    || !trailer.equals(ByteBuffer.wrap(MAGIC))) {
+                throw new IOException("Not a rental snapshot: the file does not start and end with " +
+                        new String(MAGIC, StandardCharsets.US_ASCII));
+            }
+            if (catalogOffset < MAGIC.length || catalogOffset > size - TRAILER_SIZE) {
+                throw new IOException("The rental snapshot's trailer is corrupt");
+            }
+
+            CatalogLoader.CatalogRows catalog = decodeCatalog(readBlock(channel, catalogOffset, size - TRAILER_SIZE));
+
+            try (Session session = sessionFactory.openSession()) {
+                Transaction transaction = session.beginTransaction();
+
+                try {
+                    long pricings = session.createSelectionQuery("select count(*) from ToolPricing", Long.class)
+                            .getSingleResult();
+                    long stored = session.createSelectionQuery("select count(*) from RentalAgreement", Long.class)
+                            .getSingleResult();
+                    if (pricings > 0 || stored > 0) {
+                        throw new RuntimeException("A snapshot can only be restored into an empty database.");
+                    }
+
+                    session.doWork(connection -> CatalogLoader.mergeAll(connection, catalog));
+
+                    long restored = 0;
+                    long position = MAGIC.length;
+                    while (position < catalogOffset) {
+                        ByteBuffer payload = readBlock(channel, position, catalogOffset);
+                        List<RentalAgreementRow> rows = decodeAgreements(payload);
+
+                        RentalAgreementRow.insertAll(session, rows);
+                        restored += rows.size();
+                        position += BLOCK_HEADER_SIZE + payload.capacity();
+                    }
+
+                    if (restored != agreements) {
+                        throw new IOException("The rental snapshot holds " + restored + " of its " + agreements +
+                                " agreements");
+                    }
+
+                    RentalAgreementRow.advanceIdSequence(session);
+                    transaction.commit();
+                    result = new Result(catalog.versions().size(), catalog.tools().size(), restored);
+                } catch (RuntimeException | IOException e) {
+                    if (transaction.isActive()) {
+                        transaction.rollback();
+                    }
+                    throw e;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not restore the rental snapshot " + file, e);
+        }
+
+        // The rows were inserted behind Hibernate's back
+        ToolCatalog.invalidateAll();
+        QuoteCache.invalidateAll();
+        ToolAvailability.rebuild(sessionFactory);
+        return result;
+    }
+
+    private static void writeBlock(FileChannel channel, ByteBuffer payload) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+
+        writeFully(channel, ByteBuffer.allocate(BLOCK_HEADER_SIZE).putInt(payload.remaining())
+                .putInt((int) crc.getValue()).flip());
+        writeFully(channel, payload);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Map the block at position, which must end by limit, and check it
+    private static ByteBuffer readBlock(FileChannel channel, long position, long limit) throws IOException {
+        if (position + BLOCK_HEADER_SIZE > limit) {
+            throw new IOException("The rental snapshot is corrupt at byte " + position);
+        }
+
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, position, BLOCK_HEADER_SIZE);
+        int length = header.getInt();
+        int checksum = header.getInt();
+        if (length <= 0 || position + BLOCK_HEADER_SIZE + length > limit) {
+            throw new IOException("The rental snapshot is corrupt at byte " + position);
+        }
+
+        ByteBuffer payload = channel.map(FileChannel.MapMode.READ_ONLY, position + BLOCK_HEADER_SIZE, length);
+        CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("The rental snapshot is corrupt at byte " + position);
+        }
+        return payload;
+    }
+
+    private static ByteBuffer encodeAgreements(List<RentalAgreementRow> rows) {
+        StringColumn toolCodes = StringColumn.of(rows, RentalAgreementRow::toolCode);
+        StringColumn calendars = StringColumn.of(rows, RentalAgreementRow::holidayCalendarName);
+        ByteBuffer out = ByteBuffer.allocate(4 + rows.size() * FIXED_ROW_SIZE + toolCodes.encodedSize() +
+                calendars.encodedSize());
+
+        out.putInt(rows.size());
+        rows.forEach(row -> out.putLong(row.id()));
+        toolCodes.write(out);
+        rows.forEach(row -> out.putInt(row.rentalDays()));
+        rows.forEach(row -> out.putInt((int) row.checkoutDate().toEpochDay()));
+        rows.forEach(row -> out.putLong(row.pricingVersionId()));
+        rows.forEach(row -> out.put((byte) row.discountPercent()));
+        calendars.write(out);
+        rows.forEach(row -> out.putInt(row.chargeDays()));
+        rows.forEach(row -> out.putLong(row.preDiscountChargeCents()));
+        rows.forEach(row -> out.putLong(row.discountAmountCents()));
+        rows.forEach(row -> out.putLong(row.finalChargeCents()));
+        rows.forEach(row -> out.put((byte) (row.storeId() == null ? 0 : 1)));
+        rows.forEach(row -> out.putInt(row.storeId() == null ? 0 : row.storeId()));
+
+        return out.flip();
+    }
+
+    private static List<RentalAgreementRow> decodeAgreements(ByteBuffer in) {
+        int count = in.getInt();
+        long[] ids = readLongs(in, count);
+        String[] toolCodes = StringColumn.read(in, count);
+        int[] rentalDays = readInts(in, count);
+        int[] checkoutDates = readInts(in, count);
+        long[] pricingVersionIds = readLongs(in, count);
+        byte[] discountPercents = readBytes(in, count);
+        String[] calendars = StringColumn.read(in, count);
+        int[] chargeDays = readInts(in, count);
+        long[] preDiscountCharges = readLongs(in, count);
+        long[] discountAmounts = readLongs(in, count);
+        long[] finalCharges = readLongs(in, count);
+        byte[] hasStoreIds = readBytes(in, count);
+        int[] storeIds = readInts(in, count);
+
+        List<RentalAgreementRow> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(new RentalAgreementRow(ids[i], toolCodes[i], rentalDays[i], LocalDate.ofEpochDay(checkoutDates[i]),
+                    pricingVersionIds[i], null, discountPercents[i], calendars[i], chargeDays[i],
+                    preDiscountCharges[i], discountAmounts[i], finalCharges[i],
+                    hasStoreIds[i] == 0 ? null : storeIds[i]));
+        }
+        return rows;
+    }
+
+    private static ByteBuffer encodeCatalog(CatalogLoader.CatalogRows catalog) {
+        List<String> toolTypes = catalog.toolTypes();
+        List<CatalogLoader.VersionRow> versions = catalog.versions();
+        List<CatalogLoader.ToolRow> tools = catalog.tools();
+
+        StringColumn pricingTypes = StringColumn.of(toolTypes, Function.identity());
+        StringColumn versionTypes = StringColumn.of(versions, CatalogLoader.VersionRow::toolType);
+        StringColumn toolCodes = StringColumn.of(tools, CatalogLoader.ToolRow::code);
+        StringColumn toolTypeNames = StringColumn.of(tools, CatalogLoader.ToolRow::toolType);
+        StringColumn brands = StringColumn.of(tools, CatalogLoader.ToolRow::brand);
+        ByteBuffer out = ByteBuffer.allocate(12 + pricingTypes.encodedSize() + versions.size() * (8 + 4 + 8 + 1) +
+                versionTypes.encodedSize() + toolCodes.encodedSize() + toolTypeNames.encodedSize() +
+                brands.encodedSize());
+
+        out.putInt(toolTypes.size());
+        pricingTypes.write(out);
+
+        out.putInt(versions.size());
+        versions.forEach(version -> out.putLong(version.id()));
+        versionTypes.write(out);
+        versions.forEach(version -> out.putInt((int) version.effectiveFrom().toEpochDay()));
+        versions.forEach(version -> out.putLong(version.dailyChargeCents()));
+        versions.forEach(version -> out.put((byte) ((version.weekdayCharge() ? 1 : 0)
+                | (version.weekendCharge() ? 2 : 0) | (version.holidayCharge() ? 4 : 0))));
+
+        out.putInt(tools.size());
+        toolCodes.write(out);
+        toolTypeNames.write(out);
+        brands.write(out);
+
+        return out.flip();
+    }
+
+    private static CatalogLoader.CatalogRows decodeCatalog(ByteBuffer in) {
+        int pricingCount = in.getInt();
+        List<String> toolTypes = List.of(StringColumn.read(in, pricingCount));
+
+        int versionCount = in.getInt();
+        long[] ids = readLongs(in, versionCount);
+        String[] versionTypes = StringColumn.read(in, versionCount);
+        int[] effectiveFrom = readInts(in, versionCount);
+        long[] dailyCharges = readLongs(in, versionCount);
+        byte[] flags = readBytes(in, versionCount);
+
+        List<CatalogLoader.VersionRow> versions = new ArrayList<>(versionCount);
+        for (int i = 0; i < versionCount; i++) {
+            versions.add(new CatalogLoader.VersionRow(ids[i], versionTypes[i], LocalDate.ofEpochDay(effectiveFrom[i]),
+                    dailyCharges[i], (flags[i] & 1) != 0, (flags[i] & 2) != 0, (flags[i] & 4) != 0));
+        }
+
+        int toolCount = in.getInt();
+        String[] codes = StringColumn.read(in, toolCount);
+        String[] types = StringColumn.read(in, toolCount);
+        String[] brands = StringColumn.read(in, toolCount);
+
+        List<CatalogLoader.ToolRow> tools = new ArrayList<>(toolCount);
+        for (int i = 0; i < toolCount; i++) {
+            tools.add(new CatalogLoader.ToolRow(codes[i], types[i], brands[i]));
+        }
+
+        return new CatalogLoader.CatalogRows(toolTypes, versions, tools);
+    }
+
+    private static long[] readLongs(ByteBuffer in, int count) {
+        long[] values = new long[count];
+        in.asLongBuffer().get(values);
+        in.position(in.position() + count * Long.BYTES);
+        return values;
+    }
+
+    private static int[] readInts(ByteBuffer in, int count) {
+        int[] values = new int[count];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + count * Integer.BYTES);
+        return values;
+    }
+
+    private static byte[] readBytes(ByteBuffer in, int count) {
+        byte[] values = new byte[count];
+        in.get(values);
+        return values;
+    }
+
+    // A string column as its distinct values followed by one index per row. Indexes take 1, 2 or 4 bytes,
+    // whichever is the narrowest that can number every distinct value.
+    private record StringColumn(List<byte[]> values, int[] indexes) {
+        static <T> StringColumn of(List<T> rows, Function<T, String> column) {
+            Map<String, Integer> positions = new HashMap<>();
+            List<byte[]> values = new ArrayList<>();
+            int[] indexes = new int[rows.size()];
+
+            for (int i = 0; i < indexes.length; i++) {
+                String value = column.apply(rows.get(i));
+                Integer position = positions.get(value);
+
+                if (position == null) {
+                    position = values.size();
+                    positions.put(value, position);
+                    values.add(value.getBytes(StandardCharsets.UTF_8));
+                }
+                indexes[i] = position;
+            }
+
+            return new StringColumn(values, indexes);
+        }
+
+        private static int indexWidth(int valueCount) {
+            return valueCount <= 1 << 8 ? 1 : valueCount <= 1 << 16 ? 2 : 4;
+        }
+
+        int encodedSize() {
+            int size = 4 + indexes.length * indexWidth(values.size());
+            for (byte[] value : values) {
+                size += 2 + value.length;
+            }
+            return size;
+        }
+
+        void write(ByteBuffer out) {
+            out.putInt(values.size());
+            for (byte[] value : values) {
+                out.putShort((short) value.length).put(value);
+            }
+
+            int width = indexWidth(values.size());
+            for (int index : indexes) {
+                switch (width) {
+                    case 1 -> out.put((byte) index);
+                    case 2 -> out.putShort((short) index);
+                    default -> out.putInt(index);
+                }
+            }
+        }
+
+        static String[] read(ByteBuffer in, int rows) {
+            String[] values = new String[in.getInt()];
+            for (int i = 0; i < values.length; i++) {
+                byte[] bytes = new byte[Short.toUnsignedInt(in.getShort())];
+                in.get(bytes);
+                values[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            int width = indexWidth(values.length);
+            String[] column = new String[rows];
+            for (int i = 0; i < rows; i++) {
+                column[i] = values[switch (width) {
+                    case 1 -> Byte.toUnsignedInt(in.get());
+                    case 2 -> Short.toUnsignedInt(in.getShort());
+                    default -> in.getInt();
+                }];
+            }
+            return column;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+// Versioned schema changes for persistent databases, which are upgraded in place instead of being
+// dropped and re-created. Each script in db/migration runs once, in order, in its own transaction,
+// and is recorded in schema_version. Turned on with sr0724.schema.migrate=true (see the durable
+// profile); it runs before Hibernate validates the schema.
+//
+// To change the schema, add the next V<n>__<description>.sql script to MIGRATIONS. Never edit a
+// script that has already shipped.
+public class SchemaMigrations {
+    public static final String MIGRATE_SETTING = "sr0724.schema.migrate";
+
+    static final List<String> MIGRATIONS = List.of(
+            "V1__initial_schema.sql",
+            "V2__pricing_versions.sql",
+            "V3__store_id.sql");
+
+    // Apply the migrations the database has not seen yet and return how many were applied
+    public static int migrate(ConnectionProvider connectionProvider) {
+        Connection connection = null;
+
+        try {
+            connection = connectionProvider.getConnection();
+            connection.setAutoCommit(false);
+
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("create table if not exists schema_version (version integer not null," +
+                        " script varchar(255) not null, applied_on timestamp default current_timestamp not null," +
+                        " primary key (version))");
+            }
+            connection.commit();
+
+            int current = currentVersion(connection);
+            int applied = 0;
+
+            for (int version = current + 1; version <= MIGRATIONS.size(); version++) {
+                String script = MIGRATIONS.get(version - 1);
+
+                try (Statement statement = connection.createStatement()) {
+                    for (String sql : statements(load(script))) {
+                        statement.execute(sql);
+                    }
+                }
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "insert into schema_version (version, script) values (?, ?)")) {
+                    statement.setInt(1, version);
+                    statement.setString(2, script);
+                    statement.executeUpdate();
+                }
+
+                connection.commit();
+                applied++;
+            }
+
+            return applied;
+        } catch (SQLException e) {
+            rollback(connection);
+            throw new RuntimeException("Could not migrate the database schema: " + e.getMessage(), e);
+        } finally {
+            if (connection != null) {
+                try {
+                    connectionProvider.closeConnection(connection);
+                } catch (SQLException e) {
+                    // The migrations have already been committed or rolled back
+                }
+            }
+        }
+    }
+
+    private static int currentVersion(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("select coalesce(max(version), 0) from schema_version")) {
+            result.next();
+            return result.getInt(1);
+        }
+    }
+
+    private static String load(String script) {
+        String resource = "db/migration/" + script;
+
+        try (InputStream in = SchemaMigrations.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new RuntimeException("The migration " + resource + " is missing.");
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read the migration " + resource + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Split a script into statements on ';', dropping "--" comment lines
+    static List<String> statements(String script) {
+        StringBuilder sql = new StringBuilder();
+        for (String line : script.split("\n")) {
+            if (!line.strip().startsWith("--")) {
+                sql.append(line).append('\n');
+            }
+        }
+
+        return Arrays.stream(sql.toString().split(";"))
+                .map(String::strip)
+                .filter(statement -> !statement.isEmpty())
+                .toList();
+    }
+
+    private static void rollback(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.rollback();
+            } catch (SQLException e) {
+                // Keep the original failure
+            }
+        }
+    }
+}
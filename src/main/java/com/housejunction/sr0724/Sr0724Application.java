@@ -3,109 +3,334 @@ package com.housejunction.sr0724;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class Sr0724Application {
+    private static final int DEFAULT_BATCH_CHUNK_SIZE = 500;
+
     public static void main(String[] args) {
+        if ((args.length == 2 || args.length == 3) && args[0].equals("--import")) {
+            ensureCatalogLoaded();
+            openJournal();
+            BulkImporter.importFile(Path.of(args[1]), args.length == 3 ? Path.of(args[2]) : null).print();
+            return;
+        }
+
+        if (args.length == 1 && args[0].equals("--audit")) {
+            ensureCatalogLoaded();
+            openJournal();
+            AgreementAudit.run(HibernateUtil.getSessionFactory()).print();
+            return;
+        }
+
+        if (args.length == 2 && args[0].equals("--snapshot")) {
+            ensureCatalogLoaded();
+            openJournal();
+            writeSnapshot(Path.of(args[1]));
+            return;
+        }
+
+        if (args.length == 2 && args[0].equals("--load-catalog")) {
+            loadCatalog(Path.of(args[1]));
+            return;
+        }
+
+        if (args.length >= 1 && args.length <= 2 && args[0].equals("--serve")) {
+            serve(args.length == 2 ? Integer.parseInt(args[1]) : CheckoutServer.DEFAULT_PORT);
+            return;
+        }
+
         if (args.length != 4) {
             throw new RuntimeException("There should be 4 args: tool code, rental days, checkout date, and discount percent.");
         }
 
-        String toolCode = args[0];
-        int rentalDays;
-        LocalDate checkoutDate;
-        int discountPercent;
+        CheckoutRequest request = CheckoutRequest.parse(args[0], args[1], args[2], args[3]);
+
+        ensureCatalogLoaded();
+        openJournal();
+        checkout(request.toolCode(), request.rentalDays(), request.checkoutDate(), request.discountPercent());
+    }
 
+    private static void loadCatalog(Path file) {
         try {
-            rentalDays = Integer.parseInt(args[1]);
-        } catch (Exception e) {
-            throw new RuntimeException("Something is wrong with the rental days arg." +
-                    " Make sure it is an integer value.");
+            CatalogLoader.Result result = CatalogLoader.load(file, HibernateUtil.getSessionFactory());
+            System.out.printf("Loaded %d tool pricings and %d tools from %s%n", result.pricings(), result.tools(), file);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read " + file + ": " + e.getMessage());
         }
+    }
+
+    private static void writeSnapshot(Path file) {
+        RentalSnapshot.Result result = RentalSnapshot.write(HibernateUtil.getSessionFactory(), file);
+        System.out.printf("Wrote %d rental agreements, %d tools and %d pricing versions to %s%n", result.agreements(),
+                result.tools(), result.pricingVersions(), file);
+    }
+
+    // Boot once, load the catalog, and serve checkouts and quotes until the process is stopped. With
+    // -Dsr0724.writeBehind=<queue capacity>, checkouts are stored in the background (see WriteBehindQueue).
+    private static void serve(int port) {
+        ensureCatalogLoaded();
+        RentalJournal journal = openJournal(false);
+        ToolAvailability.rebuild();
+
+        String writeBehindCapacity = System.getProperty(WriteBehindQueue.CAPACITY_PROPERTY);
+        CheckoutService service = writeBehindCapacity == null || writeBehindCapacity.isEmpty()
+                ? new CheckoutService(HibernateUtil.getSessionFactory())
+                : CheckoutService.writeBehind(HibernateUtil.getSessionFactory(), Integer.parseInt(writeBehindCapacity));
 
         try {
-            checkoutDate = LocalDate.parse(args[2], DateTimeFormatter.ofPattern("M/d/yy"));
-        } catch (Exception e) {
-            throw new RuntimeException("Something is wrong with the checkout date arg." +
-                    " Make sure it is in the following format: \"mm/dd/yy\" (ex, \"3/15/20\")");
+            CheckoutServer server = new CheckoutServer(port, service);
+            // Queued agreements are stored, and journaled, before the journal is closed
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.close();
+                if (journal != null) {
+                    journal.close();
+                }
+            }));
+            server.start();
+            System.out.printf("Serving checkouts on http://localhost:%d%n", server.getPort());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not start the server on port " + port + ": " + e.getMessage());
         }
+    }
 
-        try {
-            discountPercent = Integer.parseInt(args[3]);
-        } catch (Exception e) {
-            throw new RuntimeException("Something is wrong with the discount percent arg." +
-                    " Make sure it is an integer value.");
+    // Fill an empty database (ex, a fresh in-memory database) from the snapshot, if there is one, or else
+    // with the standard catalog
+    private static void ensureCatalogLoaded() {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            long tools = session.createSelectionQuery("select count(*) from Tool", Long.class).getSingleResult();
+
+            if (tools > 0) {
+                return;
+            }
         }
 
-        checkout(toolCode, rentalDays, checkoutDate, discountPercent);
+        if (!restoreSnapshot()) {
+            loadDatabase();
+        }
     }
 
-    public static void loadDatabase() {
-        ToolPricing pricing_ladder = new ToolPricing("Ladder", 1.99f,
-                true, true, false);
-        ToolPricing pricing_chainsaw = new ToolPricing("Chainsaw", 1.49f,
-                true, false, true);
-        ToolPricing pricing_jackhammer = new ToolPricing("Jackhammer", 2.99f,
-                true, false, false);
-
-        Tool tool1 = new Tool("CHNS", pricing_chainsaw, "Stihl");
-        Tool tool2 = new Tool("LADW", pricing_ladder, "Werner");
-        Tool tool3 = new Tool("JAKD", pricing_jackhammer, "DeWalt");
-        Tool tool4 = new Tool("JAKR", pricing_jackhammer, "Ridgid");
+    // When -Dsr0724.snapshot=<file> names an existing file, restore the database from it
+    private static boolean restoreSnapshot() {
+        String file = System.getProperty(RentalSnapshot.SNAPSHOT_PROPERTY);
 
-        Transaction transaction = null;
+        if (file == null || file.isEmpty() || !Files.exists(Path.of(file))) {
+            return false;
+        }
 
-        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
-            // Start a transaction
-            transaction = session.beginTransaction();
+        Path path = Path.of(file);
+        RentalSnapshot.Result result = RentalSnapshot.restore(HibernateUtil.getSessionFactory(), path);
+        System.out.printf("Restored %d rental agreements and %d tools from %s%n", result.agreements(), result.tools(),
+                path);
+        return true;
+    }
 
-            // Add the tool pricings to the database
-            session.persist(pricing_ladder);
-            session.persist(pricing_chainsaw);
-            session.persist(pricing_jackhammer);
+    // When -Dsr0724.journal=<file> is set, restore the agreements recorded in the journal and then
+    // record every new agreement to it
+    static void openJournal() {
+        openJournal(true);
+    }
 
-            // Add the tools to the database
-            session.persist(tool1);
-            session.persist(tool2);
-            session.persist(tool3);
-            session.persist(tool4);
+    // Returns the journal it opened, if any. Without closeOnShutdown, the caller must close it.
+    private static RentalJournal openJournal(boolean closeOnShutdown) {
+        String file = System.getProperty(RentalJournal.JOURNAL_PROPERTY);
 
-            // Commit transaction
-            transaction.commit();
-        } catch (Exception e) {
-            if (transaction != null) {
-                transaction.rollback();
-            }
+        if (file == null || file.isEmpty() || RentalJournal.getActive() != null) {
+            return null;
+        }
 
+        Path path = Path.of(file);
+        RentalJournal journal = RentalJournal.open(path);
+        int restored = RentalJournal.replay(path, HibernateUtil.getSessionFactory());
+        if (restored > 0) {
+            System.out.printf("Restored %d rental agreements from %s%n", restored, path);
+        }
+
+        RentalJournal.setActive(journal);
+        if (closeOnShutdown) {
+            Runtime.getRuntime().addShutdownHook(new Thread(journal::close));
+        }
+        return journal;
+    }
+
+    // Load the standard catalog (src/main/resources/catalog.csv). Safe to call more than once.
+    public static void loadDatabase() {
+        try {
+            CatalogLoader.loadStandard(HibernateUtil.getSessionFactory());
+        } catch (Exception e) {
             System.out.println(e.getMessage());
         }
     }
 
     private static void checkout(String toolCode, int rentalDays, LocalDate checkoutDate, int discountPercent) {
-        if (rentalDays < 1) {
-            throw new RuntimeException("Rental days must be 1 or greater.");
+        CheckoutRequest request = new CheckoutRequest(toolCode, rentalDays, checkoutDate, discountPercent);
+        request.validate();
+
+        try (CheckoutService service = new CheckoutService(HibernateUtil.getSessionFactory())) {
+            RentalAgreement agreement = service.checkout(request);
+
+            // Print the agreement details to the console
+            long start = CheckoutMetrics.start();
+            agreement.print();
+            CheckoutMetrics.record(CheckoutMetrics.Phase.PRINT, start);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
         }
+    }
+
+    public static BatchCheckoutResult checkoutBatch(List<CheckoutRequest> requests) {
+        return checkoutBatch(requests, DEFAULT_BATCH_CHUNK_SIZE);
+    }
 
-        if (discountPercent < 0 || discountPercent > 100) {
-            throw new RuntimeException("Discount percent must be in the range 0 to 100, inclusive.");
+    // Check out many requests at once, committing every chunkSize agreements. Requests that fail
+    // validation, name an unknown tool, cannot be priced, or fail to insert are reported without
+    // aborting the batch.
+    public static BatchCheckoutResult checkoutBatch(List<CheckoutRequest> requests, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new RuntimeException("Chunk size must be 1 or greater.");
         }
 
-        Transaction transaction = null;
+        BatchCheckoutResult result = new BatchCheckoutResult();
+
+        // Validate every request before touching the database
+        List<Integer> validIndexes = new ArrayList<>();
+        Set<String> toolCodes = new HashSet<>();
+        for (int i = 0; i < requests.size(); i++) {
+            CheckoutRequest request = requests.get(i);
+
+            try {
+                request.validate();
+                validIndexes.add(i);
+                toolCodes.add(request.toolCode());
+            } catch (RuntimeException e) {
+                result.addFailure(i, request, e.getMessage());
+            }
+        }
+
+        // Resolve all the tools at once, loading any that are not cached in one query
+        Map<String, Tool> tools = ToolCatalog.getAll(toolCodes);
 
         try (Session session = HibernateUtil.getSessionFactory().openSession()) {
-            Tool tool = session.get(Tool.class, toolCode);
-            RentalAgreement agreement = new RentalAgreement(tool, rentalDays, checkoutDate, discountPercent);
 
-            // Add rental agreement to the database
+            List<Integer> chunkIndexes = new ArrayList<>(chunkSize);
+            List<CheckoutRequest> chunkRequests = new ArrayList<>(chunkSize);
+            List<RentalAgreement> chunk = new ArrayList<>(chunkSize);
+
+            for (int i : validIndexes) {
+                CheckoutRequest request = requests.get(i);
+                Tool tool = tools.get(request.toolCode());
+
+                if (tool == null) {
+                    result.addFailure(i, request, unknownToolMessage(request.toolCode()));
+                    continue;
+                }
+
+                // Pricing fails for a date before the tool type's first price
+                RentalAgreement agreement;
+                try {
+                    agreement = new RentalAgreement(tool, request.rentalDays(), request.checkoutDate(),
+                            request.discountPercent());
+                } catch (RuntimeException e) {
+                    result.addFailure(i, request, e.getMessage());
+                    continue;
+                }
+
+                chunkIndexes.add(i);
+                chunkRequests.add(request);
+                chunk.add(agreement);
+
+                if (chunk.size() == chunkSize) {
+                    persistChunk(session, chunkIndexes, chunkRequests, chunk, result);
+                    chunkIndexes.clear();
+                    chunkRequests.clear();
+                    chunk.clear();
+                }
+            }
+
+            if (!chunk.isEmpty()) {
+                persistChunk(session, chunkIndexes, chunkRequests, chunk, result);
+            }
+        }
+
+        result.sortFailures();
+        return result;
+    }
+
+    static String unknownToolMessage(String toolCode) {
+        return "No tool exists with the code \"" + toolCode + "\".";
+    }
+
+    // Insert a chunk of agreements in one transaction. Agreements whose tool is already rented for
+    // those dates are reported instead of inserted. If the chunk fails, insert its agreements one at
+    // a time so that only the rows that actually fail are reported.
+    static void persistChunk(Session session, List<Integer> chunkIndexes, List<CheckoutRequest> chunkRequests,
+                             List<RentalAgreement> chunk, BatchCheckoutResult result) {
+        Transaction transaction = null;
+        int committedBefore = result.getAgreements().size();
+
+        List<Integer> reservedIndexes = new ArrayList<>(chunk.size());
+        List<CheckoutRequest> reservedRequests = new ArrayList<>(chunk.size());
+        List<RentalAgreement> reserved = new ArrayList<>(chunk.size());
+        for (int j = 0; j < chunk.size(); j++) {
+            try {
+                ToolAvailability.reserve(chunk.get(j));
+                reservedIndexes.add(chunkIndexes.get(j));
+                reservedRequests.add(chunkRequests.get(j));
+                reserved.add(chunk.get(j));
+            } catch (RuntimeException e) {
+                result.addFailure(chunkIndexes.get(j), chunkRequests.get(j), e.getMessage());
+            }
+        }
+
+        try {
             transaction = session.beginTransaction();
-            session.persist(agreement);
+            for (RentalAgreement agreement : reserved) {
+                session.persist(agreement);
+            }
             transaction.commit();
-
-            // Print the agreement details to the console
-            agreement.print();
+            ToolAvailability.confirm(reserved);
+            result.addAgreements(reserved);
         } catch (Exception e) {
-            System.out.println(e.getMessage());
+            if (transaction != null && transaction.isActive()) {
+                transaction.rollback();
+            }
+            session.clear();
+
+            for (int j = 0; j < reserved.size(); j++) {
+                // The failed chunk may have assigned ids, so each retry starts from a new agreement
+                RentalAgreement failed = reserved.get(j);
+                RentalAgreement agreement = new RentalAgreement(failed.getTool(), failed.getRentalDays(),
+                        failed.getCheckoutDate(), failed.getDiscountPercent(), failed.getHolidayCalendar());
+
+                try {
+                    transaction = session.beginTransaction();
+                    session.persist(agreement);
+                    transaction.commit();
+                    ToolAvailability.confirm(List.of(agreement));
+                    result.addAgreements(List.of(agreement));
+                } catch (Exception rowException) {
+                    if (transaction.isActive()) {
+                        transaction.rollback();
+                    }
+                    session.clear();
+                    ToolAvailability.release(agreement);
+                    result.addFailure(reservedIndexes.get(j), reservedRequests.get(j), rowException.getMessage());
+                }
+            }
         }
+
+        // Keep the persistence context from growing with the batch
+        session.clear();
+
+        List<RentalAgreement> agreements = result.getAgreements();
+        RentalJournal.recordCommitted(agreements.subList(committedBefore, agreements.size()));
     }
 }
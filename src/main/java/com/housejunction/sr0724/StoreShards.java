@@ -0,0 +1,273 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.SessionFactory;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+// Rental agreements split by store across several independent databases ("shards"), each with its own
+// SessionFactory, connection pool, checkout service and copy of the catalog. Every agreement records the
+// store that made it (store_id). A store is placed on shard (store id mod shard count) by its first
+// checkout, and from then on uses the shard that holds its agreements, so opening more shards later
+// moves no store away from its history. Checkouts at stores on different shards share no connection or
+// table, and checkout throughput grows with the number of shards.
+//
+// The catalog belongs to HibernateUtil's database. replicateCatalog copies it, ids included, into every
+// shard, and each shard then prices its checkouts from its own copy, so the shards keep taking checkouts
+// while the main database is down. Run replicateCatalog again whenever the catalog changes.
+//
+// A tool code is one tool, whichever store rents it, so the shards book into one availability index
+// loaded from all of them (see ToolAvailability.share): a tool rented at one store is turned away at
+// every other store for the same dates.
+//
+// Reports run on every shard at once and merge the results. Shards are not journaled.
+public class StoreShards implements AutoCloseable {
+    // An agreement and the shard it is stored in. Ids are only unique within a shard.
+    public record ShardSummary(int shard, AgreementSummary summary) {}
+
+    // The number of agreements and their total final charge
+    public record Totals(long agreements, long finalChargeCents) {}
+
+    private static final Comparator<ShardSummary> CHECKOUT_ORDER = Comparator
+            .comparing((ShardSummary row) -> row.summary().checkoutDate())
+            .thenComparingInt(ShardSummary::shard)
+            .thenComparingLong(row -> row.summary().id());
+
+    private final List<SessionFactory> sessionFactories = new ArrayList<>();
+    private final List<CheckoutService> services = new ArrayList<>();
+    private final List<AgreementReports> reports = new ArrayList<>();
+    private final List<AtomicReference<Map<String, Tool>>> catalogs = new ArrayList<>();
+    // The shard of every store that has checked out, by store id
+    private final ConcurrentMap<Integer, Integer> storeShards = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Build one SessionFactory per settings map, each over the settings in hibernate.cfg.xml (see
+    // HibernateUtil.buildSessionFactory)
+    public StoreShards(List<Map<String, Object>> shardSettings) {
+        if (shardSettings.isEmpty()) {
+            throw new RuntimeException("There must be at least one shard.");
+        }
+
+        for (Map<String, Object> settings : shardSettings) {
+            SessionFactory sessionFactory = HibernateUtil.buildSessionFactory(settings);
+
+            if (sessionFactory == null) {
+                close();
+                throw new RuntimeException("Could not open shard " + sessionFactories.size() + ".");
+            }
+            int shard = sessionFactories.size();
+            AtomicReference<Map<String, Tool>> catalog = new AtomicReference<>(Map.of());
+            sessionFactories.add(sessionFactory);
+            catalogs.add(catalog);
+            services.add(new CheckoutService(sessionFactory, CheckoutService.poolSize(sessionFactory), false,
+                    code -> catalog.get().get(code)));
+            reports.add(new AgreementReports(sessionFactory));
+        }
+
+        try {
+            ToolAvailability.share(sessionFactories);
+            fanOut(shard -> {
+                catalogs.get(shard).set(loadCatalog(shard));
+                return null;
+            });
+            loadStores();
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Place every store that already has agreements on the shard that holds them
+    private void loadStores() {
+        List<List<Integer>> storesByShard = fanOut(shard -> sessionFactories.get(shard).fromSession(session ->
+                session.createSelectionQuery("select distinct a.storeId from RentalAgreement a" +
+                                " where a.storeId is not null", Integer.class)
+                        .getResultList()));
+
+        for (int shard = 0; shard < storesByShard.size(); shard++) {
+            for (Integer storeId : storesByShard.get(shard)) {
+                Integer other = storeShards.putIfAbsent(storeId, shard);
+
+                if (other != null) {
+                    throw new RuntimeException("Store " + storeId + " has agreements on both shard " + other +
+                            " and shard " + shard + ".");
+                }
+            }
+        }
+    }
+
+    // The shard's own copy of the catalog, by tool code
+    private Map<String, Tool> loadCatalog(int shard) {
+        Map<String, Tool> catalog = new HashMap<>();
+        sessionFactories.get(shard).inSession(session -> session
+                .createSelectionQuery("from Tool t join fetch t.toolPricing", Tool.class)
+                .getResultList()
+                .forEach(tool -> catalog.put(tool.getCode(), tool)));
+        return Map.copyOf(catalog);
+    }
+
+    // Separate in-memory H2 databases, for tests and local runs
+    public static StoreShards inMemory(int shardCount) {
+        List<Map<String, Object>> shardSettings = new ArrayList<>();
+
+        for (int i = 0; i < shardCount; i++) {
+            shardSettings.add(Map.of(
+                    "hibernate.connection.url", "jdbc:h2:mem:shard" + i + ";DB_CLOSE_DELAY=-1",
+                    "hibernate.show_sql", "false"));
+        }
+        return new StoreShards(shardSettings);
+    }
+
+    public int getShardCount() {
+        return sessionFactories.size();
+    }
+
+    public int shardOf(int storeId) {
+        if (storeId < 0) {
+            throw new RuntimeException("Store id must be 0 or greater.");
+        }
+        return storeShards.computeIfAbsent(storeId, id -> id % sessionFactories.size());
+    }
+
+    public SessionFactory getSessionFactory(int storeId) {
+        return sessionFactories.get(shardOf(storeId));
+    }
+
+    // Copy the catalog into every shard, and price checkouts from the new copy. Run it again whenever
+    // the catalog changes.
+    public void replicateCatalog() {
+        SessionFactory source = HibernateUtil.getSessionFactory();
+        fanOut(shard -> {
+            CatalogLoader.replicate(source, sessionFactories.get(shard));
+            catalogs.get(shard).set(loadCatalog(shard));
+            return null;
+        });
+    }
+
+    public RentalAgreement checkout(int storeId, CheckoutRequest request) {
+        return services.get(shardOf(storeId)).checkout(request, storeId);
+    }
+
+    public CompletableFuture<RentalAgreement> checkoutAsync(int storeId, CheckoutRequest request) {
+        return services.get(shardOf(storeId)).checkoutAsync(request, storeId);
+    }
+
+    public boolean isAvailable(int storeId, String toolCode, LocalDate from, LocalDate to) {
+        return ToolAvailability.isAvailable(getSessionFactory(storeId), toolCode, from, to);
+    }
+
+    // The first limit agreements from every shard checked out between from and to, inclusive, in
+    // (checkout date, shard, id) order. Each shard returns at most limit rows, so this holds at most
+    // limit rows per shard however large the shards are.
+    public List<ShardSummary> summarizeByCheckoutDate(LocalDate from, LocalDate to, int limit) {
+        List<List<ShardSummary>> pages = fanOut(shard -> reports.get(shard)
+                .summarizeByCheckoutDate(from, to, null, limit)
+                .summaries()
+                .stream()
+                .map(summary -> new ShardSummary(shard, summary))
+                .toList());
+
+        List<ShardSummary> merged = new ArrayList<>();
+        pages.forEach(merged::addAll);
+        merged.sort(CHECKOUT_ORDER);
+        return merged.size() > limit ? List.copyOf(merged.subList(0, limit)) : merged;
+    }
+
+    // Agreements checked out between from and to, inclusive, counted and totalled on every shard
+    public Totals totalsByCheckoutDate(LocalDate from, LocalDate to) {
+        List<Totals> totals = fanOut(shard -> sessionFactories.get(shard).fromSession(session -> {
+            Object[] row = session.createSelectionQuery("select count(a)," +
+                            " coalesce(sum(a.chargeSummary.finalChargeCents), 0) from RentalAgreement a" +
+                            " where a.checkoutDate between :from and :to", Object[].class)
+                    .setParameter("from", from)
+                    .setParameter("to", to)
+                    .getSingleResult();
+            return new Totals((Long) row[0], ((Number) row[1]).longValue());
+        }));
+
+        long agreements = 0;
+        long finalChargeCents = 0;
+        for (Totals shardTotals : totals) {
+            agreements += shardTotals.agreements();
+            finalChargeCents += shardTotals.finalChargeCents();
+        }
+        return new Totals(agreements, finalChargeCents);
+    }
+
+    // Agreements one store checked out between from and to, inclusive, counted and totalled on its shard
+    public Totals totalsByCheckoutDate(int storeId, LocalDate from, LocalDate to) {
+        return getSessionFactory(storeId).fromSession(session -> {
+            Object[] row = session.createSelectionQuery("select count(a)," +
+                            " coalesce(sum(a.chargeSummary.finalChargeCents), 0) from RentalAgreement a" +
+                            " where a.storeId = :storeId and a.checkoutDate between :from and :to", Object[].class)
+                    .setParameter("storeId", storeId)
+                    .setParameter("from", from)
+                    .setParameter("to", to)
+                    .getSingleResult();
+            return new Totals((Long) row[0], ((Number) row[1]).longValue());
+        });
+    }
+
+    // Agreements checked out between from and to, inclusive, counted and totalled by store on every
+    // shard, in store id order
+    public Map<Integer, Totals> totalsByStore(LocalDate from, LocalDate to) {
+        List<List<Object[]>> rows = fanOut(shard -> sessionFactories.get(shard).fromSession(session -> session
+                .createSelectionQuery("select a.storeId, count(a), coalesce(sum(a.chargeSummary.finalChargeCents), 0)" +
+                        " from RentalAgreement a where a.storeId is not null and a.checkoutDate between :from and :to" +
+                        " group by a.storeId", Object[].class)
+                .setParameter("from", from)
+                .setParameter("to", to)
+                .getResultList()));
+
+        Map<Integer, Totals> totals = new TreeMap<>();
+        for (List<Object[]> shardRows : rows) {
+            for (Object[] row : shardRows) {
+                totals.put((Integer) row[0], new Totals((Long) row[1], ((Number) row[2]).longValue()));
+            }
+        }
+        return totals;
+    }
+
+    // Run the task for every shard on its own virtual thread, and return the results in shard order
+    private <T> List<T> fanOut(IntFunction<T> task) {
+        List<CompletableFuture<T>> futures = new ArrayList<>();
+        for (int shard = 0; shard < sessionFactories.size(); shard++) {
+            int current = shard;
+            futures.add(CompletableFuture.supplyAsync(() -> task.apply(current), executor));
+        }
+
+        List<T> results = new ArrayList<>();
+        for (CompletableFuture<T> future : futures) {
+            try {
+                results.add(future.join());
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void close() {
+        services.forEach(CheckoutService::close);
+        executor.close();
+
+        for (SessionFactory sessionFactory : sessionFactories) {
+            ToolAvailability.discard(sessionFactory);
+            sessionFactory.close();
+        }
+    }
+}
@@ -10,7 +10,8 @@ public class Tool {
     @Column(name = "code", unique = true)
     @NotNull String code;
 
-    @ManyToOne
+    // ToolCatalog always fetches the pricing with the tool
+    @ManyToOne(fetch = FetchType.LAZY)
     private ToolPricing toolPricing;
 
     @Column(name = "brand")
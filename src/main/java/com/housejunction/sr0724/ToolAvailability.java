@@ -0,0 +1,294 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// In-memory index of when each tool is rented out, used to stop a tool from being booked twice. It
+// is loaded from rental_agreement on first use and kept up to date by checkouts; anything that
+// inserts or deletes agreements behind Hibernate's back (bulk deletes, journal replay) must call
+// rebuild.
+//
+// A reservation stays pending from reserve until its agreement is stored (confirm) or given up
+// (release). A rebuild keeps pending reservations, since their agreements are not in rental_agreement
+// yet (an open transaction, or a write-behind queue), and runs while no reservation can be made.
+//
+// A rental holds its tool from the checkout date up to, but not including, the due date, so a tool
+// returned on its due date can be checked out again that day.
+//
+// Each database has its own index, since each holds its own rentals, unless several share one (see
+// share and StoreShards). The methods without a SessionFactory use HibernateUtil's.
+public class ToolAvailability {
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("MM/dd/yy");
+
+    private static final ConcurrentMap<SessionFactory, Index> indexes = new ConcurrentHashMap<>();
+
+    // A tool's rental period, as [start, end) epoch days
+    private record Booking(String toolCode, long start, long end) {
+        static Booking of(RentalAgreement agreement) {
+            long start = agreement.getCheckoutDate().toEpochDay();
+            return new Booking(agreement.getTool().getCode(), start, start + agreement.getRentalDays());
+        }
+    }
+
+    // The bookings of every tool in one or more databases. Reservations hold the read lock, so that a
+    // rebuild, which holds the write lock, never clears a booking made while it runs.
+    private static class Index {
+        private final List<SessionFactory> sources;
+        private final ConcurrentMap<String, Bookings> bookingsByTool = new ConcurrentHashMap<>();
+        private final Set<Booking> pending = ConcurrentHashMap.newKeySet();
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile boolean loaded;
+
+        Index(List<SessionFactory> sources) {
+            this.sources = sources;
+        }
+
+        Bookings bookings(String toolCode) {
+            return bookingsByTool.computeIfAbsent(toolCode, code -> new Bookings());
+        }
+    }
+
+    // The rentals of one tool, as disjoint [start, end) epoch-day intervals keyed by start. Each tool
+    // has its own lock, so checkouts of different tools never wait on each other.
+    private static class Bookings {
+        private final TreeMap<Long, Long> intervals = new TreeMap<>();
+
+        synchronized boolean isFree(long start, long end) {
+            Map.Entry<Long, Long> before = intervals.floorEntry(start);
+            if (before != null && before.getValue() > start) {
+                return false;
+            }
+
+            Long after = intervals.ceilingKey(start);
+            return after == null || after >= end;
+        }
+
+        synchronized boolean reserve(long start, long end) {
+            if (!isFree(start, end)) {
+                return false;
+            }
+            intervals.put(start, end);
+            return true;
+        }
+
+        // Free [start, end), which a rebuild may have merged into a longer interval with a stored rental
+        synchronized void release(long start, long end) {
+            Map.Entry<Long, Long> containing = intervals.floorEntry(start);
+            if (containing == null || containing.getValue() < end) {
+                return;
+            }
+
+            intervals.remove(containing.getKey());
+            if (containing.getKey() < start) {
+                intervals.put(containing.getKey(), start);
+            }
+            if (end < containing.getValue()) {
+                intervals.put(end, containing.getValue());
+            }
+        }
+
+        // Add a stored rental, merging it with any it overlaps (rows stored before this index existed
+        // may overlap)
+        synchronized void load(long start, long end) {
+            Map.Entry<Long, Long> before = intervals.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+            }
+
+            Map.Entry<Long, Long> next = intervals.ceilingEntry(start);
+            while (next != null && next.getKey() <= end) {
+                end = Math.max(end, next.getValue());
+                intervals.remove(next.getKey());
+                next = intervals.ceilingEntry(start);
+            }
+
+            intervals.put(start, end);
+        }
+    }
+
+    // Book the agreement's tool for its rental period, or throw if the tool is already rented then
+    public static void reserve(RentalAgreement agreement) {
+        reserve(HibernateUtil.getSessionFactory(), agreement);
+    }
+
+    public static void reserve(SessionFactory sessionFactory, RentalAgreement agreement) {
+        Booking booking = Booking.of(agreement);
+        Index index = loadedIndex(sessionFactory);
+
+        index.lock.readLock().lock();
+        try {
+            if (!index.bookings(booking.toolCode()).reserve(booking.start(), booking.end())) {
+                throw new RuntimeException(unavailableMessage(agreement));
+            }
+            index.pending.add(booking);
+        } finally {
+            index.lock.readLock().unlock();
+        }
+    }
+
+    // Mark reserved agreements as stored, once their transaction has committed
+    public static void confirm(Collection<RentalAgreement> agreements) {
+        confirm(HibernateUtil.getSessionFactory(), agreements);
+    }
+
+    public static void confirm(SessionFactory sessionFactory, Collection<RentalAgreement> agreements) {
+        Index index = index(sessionFactory);
+
+        index.lock.readLock().lock();
+        try {
+            for (RentalAgreement agreement : agreements) {
+                index.pending.remove(Booking.of(agreement));
+            }
+        } finally {
+            index.lock.readLock().unlock();
+        }
+    }
+
+    // Undo reserve, when the agreement could not be stored
+    public static void release(RentalAgreement agreement) {
+        release(HibernateUtil.getSessionFactory(), agreement);
+    }
+
+    public static void release(SessionFactory sessionFactory, RentalAgreement agreement) {
+        Booking booking = Booking.of(agreement);
+        Index index = index(sessionFactory);
+
+        index.lock.readLock().lock();
+        try {
+            index.bookings(booking.toolCode()).release(booking.start(), booking.end());
+            index.pending.remove(booking);
+        } finally {
+            index.lock.readLock().unlock();
+        }
+    }
+
+    public static boolean isAvailable(String toolCode, LocalDate from, LocalDate to) {
+        return isAvailable(HibernateUtil.getSessionFactory(), toolCode, from, to);
+    }
+
+    public static boolean isAvailable(SessionFactory sessionFactory, String toolCode, LocalDate from, LocalDate to) {
+        Index index = loadedIndex(sessionFactory);
+
+        index.lock.readLock().lock();
+        try {
+            Bookings bookings = index.bookingsByTool.get(toolCode);
+            return bookings == null || bookings.isFree(from.toEpochDay(), to.toEpochDay());
+        } finally {
+            index.lock.readLock().unlock();
+        }
+    }
+
+    // Tools of the given type that could be checked out on from and returned on to
+    public static List<Tool> getAvailableTools(String toolType, LocalDate from, LocalDate to) {
+        return getAvailableTools(HibernateUtil.getSessionFactory(), toolType, from, to);
+    }
+
+    public static List<Tool> getAvailableTools(SessionFactory sessionFactory, String toolType, LocalDate from,
+                                               LocalDate to) {
+        if (!to.isAfter(from)) {
+            throw new RuntimeException("The return date must be after the checkout date.");
+        }
+
+        List<Tool> available = new ArrayList<>();
+        for (Tool tool : ToolCatalog.getByType(toolType)) {
+            if (isAvailable(sessionFactory, tool.getCode(), from, to)) {
+                available.add(tool);
+            }
+        }
+        return available;
+    }
+
+    static String unavailableMessage(RentalAgreement agreement) {
+        return String.format("Tool %s is already rented out between %s and %s.", agreement.getTool().getCode(),
+                agreement.getCheckoutDate().format(DATE_FORMAT), agreement.getDueDate().format(DATE_FORMAT));
+    }
+
+    // Reload every booking from rental_agreement, keeping pending reservations
+    public static void rebuild() {
+        rebuild(HibernateUtil.getSessionFactory());
+    }
+
+    public static void rebuild(SessionFactory sessionFactory) {
+        Index index = index(sessionFactory);
+
+        index.lock.writeLock().lock();
+        try {
+            load(index);
+        } finally {
+            index.lock.writeLock().unlock();
+        }
+    }
+
+    // Called with the write lock held
+    private static void load(Index index) {
+        index.bookingsByTool.clear();
+
+        for (SessionFactory source : index.sources) {
+            try (Session session = source.openSession()) {
+                session.createSelectionQuery("select a.tool.code, a.checkoutDate, a.rentalDays from RentalAgreement a",
+                                Object[].class)
+                        .setReadOnly(true)
+                        .setFetchSize(AgreementReports.FETCH_SIZE)
+                        .getResultStream()
+                        .forEach(row -> {
+                            long start = ((LocalDate) row[1]).toEpochDay();
+                            index.bookings((String) row[0]).load(start, start + (Integer) row[2]);
+                        });
+            }
+        }
+
+        // Merged, since one may have been stored after all and so have been read again above. Release
+        // frees a reservation's dates from whatever interval it was merged into.
+        for (Booking booking : index.pending) {
+            index.bookings(booking.toolCode()).load(booking.start(), booking.end());
+        }
+
+        index.loaded = true;
+    }
+
+    // Book the rentals of all the given databases in one index, loaded from all of them, so that a tool
+    // is never rented twice even when its rentals are split across the databases. Rebuilding any of
+    // them reloads it from all of them.
+    public static void share(List<SessionFactory> sessionFactories) {
+        Index index = new Index(List.copyOf(sessionFactories));
+        sessionFactories.forEach(factory -> indexes.put(factory, index));
+    }
+
+    // Drop the index of a database that is being closed
+    public static void discard(SessionFactory sessionFactory) {
+        indexes.remove(sessionFactory);
+    }
+
+    private static Index index(SessionFactory sessionFactory) {
+        return indexes.computeIfAbsent(sessionFactory, factory -> new Index(List.of(factory)));
+    }
+
+    private static Index loadedIndex(SessionFactory sessionFactory) {
+        Index index = index(sessionFactory);
+
+        if (!index.loaded) {
+            index.lock.writeLock().lock();
+            try {
+                if (!index.loaded) {
+                    load(index);
+                }
+            } finally {
+                index.lock.writeLock().unlock();
+            }
+        }
+        return index;
+    }
+}
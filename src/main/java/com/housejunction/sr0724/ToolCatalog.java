@@ -0,0 +1,165 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.Session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Read-through, in-memory cache of tools (with their pricing) keyed by tool code. The catalog
+// rarely changes, so checkouts read it from here instead of the database. Changes made through
+// Hibernate entities invalidate the cache once they commit (see CatalogInvalidation); bulk updates
+// must call invalidate.
+public class ToolCatalog {
+    private static final ConcurrentMap<String, Tool> tools = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, List<Tool>> toolsByType = new ConcurrentHashMap<>();
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    // Bumped by every invalidation, so a load that overlapped one knows it may have read the old rows.
+    // Loads are published under the read lock and invalidations run under the write lock, so no load
+    // is cached once an invalidation has started.
+    private static final AtomicLong generation = new AtomicLong();
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Returns null if no tool has the given code
+    public static Tool get(String code) {
+        Tool tool = tools.get(code);
+
+        if (tool != null) {
+            hits.increment();
+            return tool;
+        }
+
+        misses.increment();
+        long loadedAt = generation.get();
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            List<Tool> loaded = session
+                    .createSelectionQuery("from Tool t join fetch t.toolPricing where t.code = :code", Tool.class)
+                    .setParameter("code", code)
+                    .getResultList();
+
+            if (loaded.isEmpty()) {
+                return null;
+            }
+
+            return publish(tools, code, loaded.getFirst(), loadedAt);
+        }
+    }
+
+    // Look up many tools, loading all the missing ones in one query. Unknown codes are left out of the result.
+    public static Map<String, Tool> getAll(Collection<String> codes) {
+        Map<String, Tool> result = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+
+        for (String code : codes) {
+            Tool tool = tools.get(code);
+
+            if (tool != null) {
+                hits.increment();
+                result.put(code, tool);
+            } else {
+                misses.increment();
+                missing.add(code);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            long loadedAt = generation.get();
+            try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+                session.createSelectionQuery("from Tool t join fetch t.toolPricing where t.code in :codes", Tool.class)
+                        .setParameter("codes", missing)
+                        .getResultList()
+                        .forEach(tool -> result.put(tool.getCode(), publish(tools, tool.getCode(), tool, loadedAt)));
+            }
+        }
+
+        return result;
+    }
+
+    // Every tool of the given type
+    public static List<Tool> getByType(String toolType) {
+        List<Tool> cached = toolsByType.get(toolType);
+
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+
+        misses.increment();
+        long loadedAt = generation.get();
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            List<Tool> loaded = List.copyOf(session
+                    .createSelectionQuery("from Tool t join fetch t.toolPricing p where p.toolType = :toolType order by t.code",
+                            Tool.class)
+                    .setParameter("toolType", toolType)
+                    .getResultList());
+
+            return publish(toolsByType, toolType, loaded, loadedAt);
+        }
+    }
+
+    // Cache a freshly loaded value, unless an invalidation ran while it was being loaded
+    private static <K, V> V publish(ConcurrentMap<K, V> cache, K key, V value, long loadedAt) {
+        lock.readLock().lock();
+        try {
+            if (generation.get() != loadedAt) {
+                return value;
+            }
+
+            V existing = cache.putIfAbsent(key, value);
+            return existing != null ? existing : value;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // A tool was added, changed or removed, so the lists by type are dropped along with it
+    public static void invalidate(String code) {
+        lock.writeLock().lock();
+        try {
+            generation.incrementAndGet();
+            tools.remove(code);
+            toolsByType.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Drop every tool that uses the given pricing
+    public static void invalidatePricing(String toolType) {
+        lock.writeLock().lock();
+        try {
+            generation.incrementAndGet();
+            tools.values().removeIf(tool -> tool.getType().equals(toolType));
+            toolsByType.remove(toolType);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public static void invalidateAll() {
+        lock.writeLock().lock();
+        try {
+            generation.incrementAndGet();
+            tools.clear();
+            toolsByType.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getMisses() {
+        return misses.sum();
+    }
+}
@@ -1,11 +1,21 @@
 package com.housejunction.sr0724;
 
+import jakarta.persistence.CascadeType;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
+import jakarta.persistence.FetchType;
 import jakarta.persistence.Id;
+import jakarta.persistence.OneToMany;
+import jakarta.persistence.OrderBy;
 import jakarta.persistence.Table;
 import jakarta.validation.constraints.NotNull;
 
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+// A tool type and the history of its prices. The versions are loaded with the pricing, sorted by
+// effective date, so finding the price in effect on a date is a binary search in memory.
 @Entity
 @Table(name="tool_pricing")
 public class ToolPricing {
@@ -13,56 +23,94 @@ public class ToolPricing {
     @Column(name = "tool_type", unique = true)
     @NotNull String toolType;
 
-    @Column(name = "daily_charge")
-    @NotNull
-    private float dailyCharge;
-
-    @Column(name = "weekday_charge")
-    @NotNull private boolean weekdayCharge;
-
-    @Column(name = "weekend_charge")
-    @NotNull private boolean weekendCharge;
-
-    @Column(name = "holiday_charge")
-    @NotNull
-    private boolean holidayCharge;
+    @OneToMany(mappedBy = "toolPricing", cascade = CascadeType.PERSIST, fetch = FetchType.EAGER)
+    @OrderBy("effectiveFrom")
+    private List<ToolPricingVersion> versions = new ArrayList<>();
 
     public ToolPricing() {}
 
-    public ToolPricing(String type, float dailyCharge,
+    // A new tool type, priced the same on every date until another version is added
+    public ToolPricing(String type, long dailyChargeCents,
                        boolean weekdayCharge, boolean weekendCharge, boolean holidayCharge) {
         this.toolType = type;
-        this.dailyCharge = dailyCharge;
-        this.weekdayCharge = weekdayCharge;
-        this.weekendCharge = weekendCharge;
-        this.holidayCharge = holidayCharge;
+        this.versions.add(new ToolPricingVersion(this, ToolPricingVersion.EARLIEST, dailyChargeCents,
+                weekdayCharge, weekendCharge, holidayCharge));
     }
 
     public String getToolType() {
         return toolType;
     }
 
-    public float getDailyCharge() {
-        return dailyCharge;
+    public List<ToolPricingVersion> getVersions() {
+        return List.copyOf(versions);
+    }
+
+    // The version in effect on the given date
+    public ToolPricingVersion getVersion(LocalDate date) {
+        int low = 0;
+        int high = versions.size() - 1;
+
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (versions.get(middle).getEffectiveFrom().isAfter(date)) {
+                high = middle - 1;
+            } else {
+                low = middle;
+            }
+        }
+
+        if (versions.isEmpty() || versions.get(low).getEffectiveFrom().isAfter(date)) {
+            throw new RuntimeException("The " + toolType + " has no price on " + date + ".");
+        }
+        return versions.get(low);
+    }
+
+    // The version in effect today
+    public ToolPricingVersion getCurrentVersion() {
+        return getVersion(LocalDate.now());
+    }
+
+    // Change the price from the given date on. The caller persists the returned version.
+    public ToolPricingVersion addVersion(LocalDate effectiveFrom, long dailyChargeCents,
+                                         boolean weekdayCharge, boolean weekendCharge, boolean holidayCharge) {
+        for (ToolPricingVersion version : versions) {
+            if (version.getEffectiveFrom().equals(effectiveFrom)) {
+                throw new RuntimeException("The " + toolType + " already has a price from " + effectiveFrom + ".");
+            }
+        }
+
+        ToolPricingVersion version = new ToolPricingVersion(this, effectiveFrom, dailyChargeCents,
+                weekdayCharge, weekendCharge, holidayCharge);
+        int index = 0;
+        while (index < versions.size() && versions.get(index).getEffectiveFrom().isBefore(effectiveFrom)) {
+            index++;
+        }
+        versions.add(index, version);
+        return version;
+    }
+
+    public long getDailyChargeCents() {
+        return getCurrentVersion().getDailyChargeCents();
     }
 
     public boolean hasWeekdayCharge() {
-        return weekdayCharge;
+        return getCurrentVersion().hasWeekdayCharge();
     }
 
     public boolean hasWeekendCharge() {
-        return weekendCharge;
+        return getCurrentVersion().hasWeekendCharge();
     }
 
     public boolean hasHolidayCharge() {
-        return holidayCharge;
+        return getCurrentVersion().hasHolidayCharge();
     }
 
     @Override
     public String toString() {
-        return String.format("ToolPricing: {type=\"%s\", dailyCharge=\"%.2f\"," +
+        ToolPricingVersion current = getCurrentVersion();
+        return String.format("ToolPricing: {type=\"%s\", dailyCharge=\"%s\"," +
                         " weekdayCharge=\"%s\", weekendCharge=\"%s\", holidayCharge=\"%s\"}",
-                this.toolType, this.dailyCharge,
-                this.weekdayCharge, this.weekendCharge, this.holidayCharge);
+                this.toolType, Money.format(current.getDailyChargeCents()),
+                current.hasWeekdayCharge(), current.hasWeekendCharge(), current.hasHolidayCharge());
     }
 }
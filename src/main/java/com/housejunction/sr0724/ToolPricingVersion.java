@@ -0,0 +1,102 @@
+package com.housejunction.sr0724;
+
+import jakarta.persistence.*;
+import jakarta.validation.constraints.NotNull;
+import org.hibernate.annotations.Immutable;
+
+import java.time.LocalDate;
+
+// The pricing of a tool type from a given date until the next version takes effect. Versions are
+// never changed once stored: a price change adds a new version, and agreements reference the version
+// they were priced with, so every agreement can be repriced exactly no matter how prices move later.
+@Entity
+@Immutable
+@Table(name = "tool_pricing_version", uniqueConstraints =
+        @UniqueConstraint(name = "uk_tool_pricing_version", columnNames = {"tool_type", "effective_from"}))
+public class ToolPricingVersion {
+    // The effective date of a tool type's first version, so that it covers every checkout date
+    public static final LocalDate EARLIEST = LocalDate.of(1900, 1, 1);
+
+    // Versions are also inserted with plain SQL (see CatalogLoader), so ids are not pooled
+    private @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "tool_pricing_version_id")
+    @SequenceGenerator(name = "tool_pricing_version_id", sequenceName = "tool_pricing_version_seq", allocationSize = 1)
+    @Column(name = "id")
+    long id;
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "tool_type", nullable = false)
+    private ToolPricing toolPricing;
+
+    @Column(name = "tool_type", insertable = false, updatable = false)
+    private String toolType;
+
+    @Column(name = "effective_from", nullable = false)
+    @NotNull private LocalDate effectiveFrom;
+
+    @Column(name = "daily_charge_cents")
+    @NotNull private long dailyChargeCents;
+
+    @Column(name = "weekday_charge")
+    @NotNull private boolean weekdayCharge;
+
+    @Column(name = "weekend_charge")
+    @NotNull private boolean weekendCharge;
+
+    @Column(name = "holiday_charge")
+    @NotNull private boolean holidayCharge;
+
+    protected ToolPricingVersion() {}
+
+    ToolPricingVersion(ToolPricing toolPricing, LocalDate effectiveFrom, long dailyChargeCents,
+                       boolean weekdayCharge, boolean weekendCharge, boolean holidayCharge) {
+        this.toolPricing = toolPricing;
+        this.toolType = toolPricing.getToolType();
+        this.effectiveFrom = effectiveFrom;
+        this.dailyChargeCents = dailyChargeCents;
+        this.weekdayCharge = weekdayCharge;
+        this.weekendCharge = weekendCharge;
+        this.holidayCharge = holidayCharge;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getToolType() {
+        return toolType;
+    }
+
+    public LocalDate getEffectiveFrom() {
+        return effectiveFrom;
+    }
+
+    public long getDailyChargeCents() {
+        return dailyChargeCents;
+    }
+
+    public boolean hasWeekdayCharge() {
+        return weekdayCharge;
+    }
+
+    public boolean hasWeekendCharge() {
+        return weekendCharge;
+    }
+
+    public boolean hasHolidayCharge() {
+        return holidayCharge;
+    }
+
+    boolean hasSameTerms(long dailyChargeCents, boolean weekdayCharge, boolean weekendCharge, boolean holidayCharge) {
+        return this.dailyChargeCents == dailyChargeCents && this.weekdayCharge == weekdayCharge
+                && this.weekendCharge == weekendCharge && this.holidayCharge == holidayCharge;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ToolPricingVersion: {type=\"%s\", effectiveFrom=\"%s\", dailyCharge=\"%s\"," +
+                        " weekdayCharge=\"%s\", weekendCharge=\"%s\", holidayCharge=\"%s\"}",
+                this.toolType, this.effectiveFrom, Money.format(this.dailyChargeCents),
+                this.weekdayCharge, this.weekendCharge, this.holidayCharge);
+    }
+}
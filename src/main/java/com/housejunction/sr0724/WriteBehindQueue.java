@@ -0,0 +1,258 @@
+package com.housejunction.sr0724;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Stores rental agreements in the background, so that a write-behind checkout (see
+// CheckoutService.writeBehind) returns as soon as its agreement is priced and its tool is booked,
+// without waiting for the database. Enable it in server mode with -Dsr0724.writeBehind=<queue capacity>.
+//
+// Durability contract:
+//   - An accepted agreement is only in memory until the writer stores it. If the process dies first, it
+//     is lost; nothing else is.
+//   - The writer stores agreements in the order they were accepted, up to batchSize per transaction.
+//   - flush returns once every agreement accepted before the call is stored (or has failed). close stops
+//     accepting agreements and flushes, so a clean shutdown loses nothing.
+//   - With a journal, a batch is journaled after it commits, so the journal never runs ahead of the
+//     database.
+//   - A batch that fails to commit is retried one agreement per transaction. An agreement that fails
+//     again is dropped, its tool is released, and it is counted in getFailedCount.
+//   - A batch that cannot get a connection at all (ex, the pool timed out or the database is down) fails
+//     whole, without retries, since each retry would only wait out the pool's timeout again.
+//   - An agreement's id is assigned when it is stored, so it reads 0 until then.
+//
+// When the queue is full, submit blocks until the writer makes room, so a database that falls behind
+// slows checkouts down instead of growing the queue without bound.
+public class WriteBehindQueue implements AutoCloseable {
+    public static final String CAPACITY_PROPERTY = "sr0724.writeBehind";
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    // Put on the queue by close, after every accepted agreement
+    private static final RentalAgreement STOP = new RentalAgreement();
+
+    // How an attempt to store agreements in one transaction ended
+    private enum Outcome { STORED, REJECTED, UNAVAILABLE }
+
+    private final SessionFactory sessionFactory;
+    private final BlockingQueue<RentalAgreement> queue;
+    private final int batchSize;
+    private final boolean journaled;
+    private final Thread writer;
+
+    // submit holds the read lock, so close can wait out submits that already checked closed
+    private final ReentrantReadWriteLock lifecycle = new ReentrantReadWriteLock();
+    private boolean closed;
+
+    private final AtomicLong accepted = new AtomicLong();
+
+    // Guarded by this
+    private long processed;
+    private long failed;
+    private long batches;
+
+    public WriteBehindQueue(SessionFactory sessionFactory, int capacity, int batchSize, boolean journaled) {
+        if (capacity < 1 || batchSize < 1) {
+            throw new RuntimeException("Queue capacity and batch size must be 1 or greater.");
+        }
+
+        this.sessionFactory = sessionFactory;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.journaled = journaled;
+        this.writer = Thread.ofPlatform().name("write-behind-writer").daemon().start(this::writeLoop);
+    }
+
+    // Queue an agreement to be stored, waiting for room if the queue is full
+    public void submit(RentalAgreement agreement) {
+        lifecycle.readLock().lock();
+        try {
+            if (closed) {
+                throw new RuntimeException("The write-behind queue is closed.");
+            }
+
+            // Counted before it is queued, so a flush never returns while a submit is still waiting
+            accepted.incrementAndGet();
+            try {
+                queue.put(agreement);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                markProcessed(1, 1);
+                throw new RuntimeException("Interrupted while waiting to queue the agreement.");
+            }
+        } finally {
+            lifecycle.readLock().unlock();
+        }
+    }
+
+    // Wait until every agreement accepted so far has been stored or has failed
+    public void flush() {
+        long target = accepted.get();
+
+        synchronized (this) {
+            while (processed < target) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while flushing the write-behind queue.");
+                }
+            }
+        }
+    }
+
+    // Agreements waiting to be stored
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    public synchronized long getFailedCount() {
+        return failed;
+    }
+
+    public synchronized long getBatchCount() {
+        return batches;
+    }
+
+    private void writeLoop() {
+        List<RentalAgreement> batch = new ArrayList<>(batchSize);
+        boolean stopping = false;
+
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch, batchSize - 1);
+
+            // Nothing is queued after STOP, so it can only be last
+            if (batch.getLast() == STOP) {
+                batch.removeLast();
+                stopping = true;
+            }
+
+            if (!batch.isEmpty()) {
+                // Nothing a batch does may stop the writer, or flush and close would wait forever
+                try {
+                    write(batch);
+                } catch (RuntimeException e) {
+                    System.out.println(e.getMessage());
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<RentalAgreement> batch) {
+        List<RentalAgreement> stored = new ArrayList<>(batch.size());
+
+        try {
+            Outcome outcome = store(batch);
+
+            if (outcome == Outcome.STORED) {
+                stored.addAll(batch);
+            } else if (outcome == Outcome.REJECTED) {
+                // Find the agreements the database rejects, until it can no longer be reached
+                for (RentalAgreement agreement : batch) {
+                    if (outcome != Outcome.UNAVAILABLE) {
+                        outcome = store(List.of(agreement));
+                    }
+
+                    if (outcome == Outcome.STORED) {
+                        stored.add(agreement);
+                    } else {
+                        ToolAvailability.release(sessionFactory, agreement);
+                    }
+                }
+            } else {
+                batch.forEach(agreement -> ToolAvailability.release(sessionFactory, agreement));
+            }
+            ToolAvailability.confirm(sessionFactory, stored);
+
+            if (journaled) {
+                RentalJournal.recordCommitted(stored);
+            }
+        } finally {
+            // Whatever was not stored counts as failed, so flush always returns
+            synchronized (this) {
+                batches++;
+                markProcessed(batch.size(), batch.size() - stored.size());
+            }
+        }
+    }
+
+    // Store the agreements in one transaction. Beginning the transaction takes a connection from the
+    // pool, so a failure before then means the database could not be reached, and one after it that
+    // the database turned the agreements away.
+    private Outcome store(List<RentalAgreement> agreements) {
+        Session session = null;
+        Transaction transaction;
+
+        try {
+            session = sessionFactory.openSession();
+            transaction = session.beginTransaction();
+        } catch (RuntimeException e) {
+            System.out.println("Could not store " + agreements.size() + " rental agreements: " + e.getMessage());
+
+            if (session != null) {
+                session.close();
+            }
+            return Outcome.UNAVAILABLE;
+        }
+
+        try (Session open = session) {
+            try {
+                for (RentalAgreement agreement : agreements) {
+                    open.persist(agreement);
+                }
+                transaction.commit();
+                return Outcome.STORED;
+            } catch (RuntimeException e) {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+                throw e;
+            }
+        } catch (RuntimeException e) {
+            System.out.println(e.getMessage());
+
+            agreements.forEach(RentalAgreement::clearId);
+            return Outcome.REJECTED;
+        }
+    }
+
+    private synchronized void markProcessed(int count, int failures) {
+        processed += count;
+        failed += failures;
+        notifyAll();
+    }
+
+    // Stop accepting agreements, store everything already accepted, and stop the writer
+    @Override
+    public void close() {
+        lifecycle.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            lifecycle.writeLock().unlock();
+        }
+
+        try {
+            queue.put(STOP);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+-- Tool catalog and rental agreements, as of the first durable release
+create sequence rental_agreement_seq start with 1 increment by 50;
+
+create table tool_pricing (
+    tool_type varchar(255) not null,
+    daily_charge_cents bigint,
+    weekday_charge boolean,
+    weekend_charge boolean,
+    holiday_charge boolean,
+    primary key (tool_type)
+);
+
+create table tool (
+    code varchar(255) not null,
+    toolPricing_tool_type varchar(255),
+    brand varchar(255),
+    primary key (code),
+    constraint fk_tool_tool_pricing foreign key (toolPricing_tool_type) references tool_pricing
+);
+
+create table rental_agreement (
+    id bigint not null,
+    tool_code varchar(255) not null,
+    rental_days integer,
+    checkout_date date,
+    daily_rental_charge_cents bigint,
+    weekday_charge boolean,
+    weekend_charge boolean,
+    holiday_charge boolean,
+    discount_percent integer,
+    holiday_calendar varchar(255),
+    charge_days integer,
+    pre_discount_charge_cents bigint,
+    discount_amount_cents bigint,
+    final_charge_cents bigint,
+    primary key (id),
+    constraint fk_rental_agreement_tool foreign key (tool_code) references tool
+);
+
+create index idx_rental_agreement_checkout_date on rental_agreement (checkout_date, id);
+create index idx_rental_agreement_tool_code on rental_agreement (tool_code, checkout_date, id);
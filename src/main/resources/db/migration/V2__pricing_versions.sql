@@ -0,0 +1,72 @@
+-- Agreements reference an immutable, effective-dated pricing version instead of copying the daily
+-- charge and charge flags into every row
+create sequence tool_pricing_version_seq start with 1 increment by 1;
+
+create table tool_pricing_version (
+    id bigint not null,
+    tool_type varchar(255) not null,
+    effective_from date not null,
+    daily_charge_cents bigint,
+    weekday_charge boolean,
+    weekend_charge boolean,
+    holiday_charge boolean,
+    primary key (id),
+    constraint uk_tool_pricing_version unique (tool_type, effective_from),
+    constraint fk_tool_pricing_version_tool_pricing foreign key (tool_type) references tool_pricing
+);
+
+-- Today's prices become the first version of each tool type, in effect on every date
+insert into tool_pricing_version (id, tool_type, effective_from, daily_charge_cents, weekday_charge, weekend_charge,
+                                  holiday_charge)
+select next value for tool_pricing_version_seq, tool_type, date '1900-01-01', daily_charge_cents, weekday_charge,
+       weekend_charge, holiday_charge
+from tool_pricing;
+
+-- Agreements made at other prices get versions of their own. They are dated before 1900 so that they
+-- never price a new rental.
+insert into tool_pricing_version (id, tool_type, effective_from, daily_charge_cents, weekday_charge, weekend_charge,
+                                  holiday_charge)
+select next value for tool_pricing_version_seq, tool_type, dateadd(day, ordinal, date '1800-01-01'),
+       daily_charge_cents, weekday_charge, weekend_charge, holiday_charge
+from (
+    select terms.*, row_number() over (order by tool_type, daily_charge_cents, weekday_charge, weekend_charge,
+                                       holiday_charge) as ordinal
+    from (
+        select distinct t.toolPricing_tool_type as tool_type, a.daily_rental_charge_cents as daily_charge_cents,
+               a.weekday_charge, a.weekend_charge, a.holiday_charge
+        from rental_agreement a
+        join tool t on t.code = a.tool_code
+        where not exists (
+            select 1 from tool_pricing_version v
+            where v.tool_type = t.toolPricing_tool_type
+              and v.daily_charge_cents = a.daily_rental_charge_cents
+              and v.weekday_charge = a.weekday_charge
+              and v.weekend_charge = a.weekend_charge
+              and v.holiday_charge = a.holiday_charge)
+    ) terms
+) legacy;
+
+alter table rental_agreement add column pricing_version_id bigint;
+
+update rental_agreement a set pricing_version_id = (
+    select v.id from tool_pricing_version v
+    join tool t on t.toolPricing_tool_type = v.tool_type
+    where t.code = a.tool_code
+      and v.daily_charge_cents = a.daily_rental_charge_cents
+      and v.weekday_charge = a.weekday_charge
+      and v.weekend_charge = a.weekend_charge
+      and v.holiday_charge = a.holiday_charge);
+
+alter table rental_agreement alter column pricing_version_id set not null;
+alter table rental_agreement add constraint fk_rental_agreement_pricing_version
+    foreign key (pricing_version_id) references tool_pricing_version;
+
+alter table rental_agreement drop column daily_rental_charge_cents;
+alter table rental_agreement drop column weekday_charge;
+alter table rental_agreement drop column weekend_charge;
+alter table rental_agreement drop column holiday_charge;
+
+alter table tool_pricing drop column daily_charge_cents;
+alter table tool_pricing drop column weekday_charge;
+alter table tool_pricing drop column weekend_charge;
+alter table tool_pricing drop column holiday_charge;
@@ -0,0 +1,5 @@
+-- The store that made each rental, so that agreements split across store shards can be routed and
+-- reported by store. Agreements stored before stores were recorded have none.
+alter table rental_agreement add column store_id integer;
+
+create index idx_rental_agreement_store_id on rental_agreement (store_id, checkout_date, id);
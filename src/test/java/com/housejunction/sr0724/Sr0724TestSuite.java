@@ -1,17 +1,48 @@
 package com.housejunction.sr0724;
 
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DayOfWeek;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.time.Month;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import static java.time.temporal.TemporalAdjusters.firstInMonth;
 import static org.junit.jupiter.api.Assertions.*;
 
 public class Sr0724TestSuite {
@@ -96,6 +127,13 @@ public class Sr0724TestSuite {
             assertTrue(agreement.hasWeekdayCharge());
             assertTrue(agreement.hasWeekendCharge());
             assertFalse(agreement.hasHolidayCharge());
+
+            // Ensure the charges were stored with the agreement
+            ChargeSummary summary = agreement.getChargeSummary();
+            assertEquals(2, summary.getChargeDays());
+            assertEquals(398, summary.getPreDiscountChargeCents());
+            assertEquals(40, summary.getDiscountAmountCents());
+            assertEquals(358, summary.getFinalChargeCents());
         } catch (Exception e) {
             System.out.println(e.getMessage());
         }
@@ -293,6 +331,1330 @@ public class Sr0724TestSuite {
         }
     }
 
+    // Test 7
+    @Test
+    void shouldMatchDayByDayChargeDaysForEveryPricingCombination() {
+        LocalDate[] checkoutDates = new LocalDate[] {
+                LocalDate.of(2015, 7, 2), LocalDate.of(2015, 9, 3), LocalDate.of(2020, 7, 2),
+                LocalDate.of(2021, 7, 1), LocalDate.of(2023, 12, 28), LocalDate.of(2026, 8, 30)
+        };
+        int[] rentalDaysValues = new int[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 13, 31, 62, 365, 366, 1000};
+
+        for (int flags = 0; flags < 8; flags++) {
+            boolean weekdayCharge = (flags & 1) != 0;
+            boolean weekendCharge = (flags & 2) != 0;
+            boolean holidayCharge = (flags & 4) != 0;
+            Tool tool = new Tool("TEST", new ToolPricing("Test", 100,
+                    weekdayCharge, weekendCharge, holidayCharge), "Test");
+
+            for (LocalDate checkoutDate : checkoutDates) {
+                for (int rentalDays : rentalDaysValues) {
+                    RentalAgreement agreement = new RentalAgreement(tool, rentalDays, checkoutDate, 0);
+                    assertEquals(referenceChargeDays(agreement), agreement.getChargeDays(),
+                            String.format("flags=%d, checkout=%s, days=%d", flags, checkoutDate, rentalDays));
+                }
+            }
+        }
+    }
+
+    // Test 8
+    @Test
+    void shouldSkipHolidaysFromRegionalCalendar() {
+        HolidayCalendar calendar = new HolidayCalendar("test-regional", List.of(
+                HolidayRule.lastDayOfWeek(Month.MAY, DayOfWeek.MONDAY),
+                HolidayRule.nthDayOfWeek(Month.NOVEMBER, 4, DayOfWeek.THURSDAY),
+                HolidayRule.nearestWeekday(Month.JANUARY, 1)));
+        HolidayCalendar.register(calendar);
+
+        // Memorial Day 2024 is 5/27, Thanksgiving 2024 is 11/28, and New Year's Day 2022
+        // falls on a Saturday, so it is observed on Friday 12/31/21
+        assertEquals(1, calendar.countHolidays(LocalDate.of(2024, 5, 27), LocalDate.of(2024, 5, 27)));
+        assertEquals(2, calendar.countHolidays(LocalDate.of(2024, 5, 1), LocalDate.of(2024, 12, 31)));
+        assertEquals(1, calendar.countHolidays(LocalDate.of(2021, 12, 31), LocalDate.of(2022, 1, 3)));
+        assertEquals(0, calendar.countHolidays(LocalDate.of(2022, 1, 1), LocalDate.of(2022, 5, 29)));
+        assertEquals(9, calendar.countHolidays(LocalDate.of(2021, 12, 1), LocalDate.of(2024, 12, 31)));
+
+        Tool tool = new Tool("TEST", new ToolPricing("Test", 100, true, true, false), "Test");
+        RentalAgreement agreement = new RentalAgreement(tool, 5, LocalDate.of(2024, 11, 26), 0, calendar);
+        assertEquals(4, agreement.getChargeDays());
+        assertSame(calendar, agreement.getHolidayCalendar());
+
+        // A name keeps its rules, so stored agreements are always priced again with the calendar they used
+        HolidayCalendar.register(calendar);
+        RuntimeException exception = assertThrows(RuntimeException.class, () -> HolidayCalendar.register(
+                new HolidayCalendar("test-regional", List.of(HolidayRule.fixedDate(Month.JULY, 4)))));
+        assertEquals("A holiday calendar is already registered under the name \"test-regional\".",
+                exception.getMessage());
+        assertSame(calendar, HolidayCalendar.forName("test-regional"));
+
+        // A fixed-date holiday on a weekend is not taken off twice when neither weekends nor holidays are
+        // charged. 7/4/20 is a Saturday: the rental from Friday 7/3 charges Monday 7/6 only.
+        HolidayCalendar fixed = new HolidayCalendar("test-fixed", List.of(HolidayRule.fixedDate(Month.JULY, 4)));
+        HolidayCalendar.register(fixed);
+        Tool jackhammer = ToolCatalog.get("JAKR");
+
+        // From 2020 through 2026, July 4 falls on a weekend in 2020, 2021 and 2026
+        long first = LocalDate.of(2020, 7, 4).toEpochDay();
+        long last = LocalDate.of(2026, 7, 4).toEpochDay();
+        assertEquals(4, fixed.countHolidays(first, last, true, false));
+        assertEquals(3, fixed.countHolidays(first, last, false, true));
+        assertEquals(7, fixed.countHolidays(first, last, true, true));
+        assertEquals(1, fixed.countHolidays(first + 1, last - 1, false, true));
+        assertEquals(0, fixed.countHolidays(first, last, false, false));
+        assertEquals(1, new RentalAgreement(jackhammer, 3, LocalDate.of(2020, 7, 3), 0, fixed).getChargeDays());
+        assertEquals(3, new RentalAgreement(jackhammer, 5, LocalDate.of(2020, 7, 2), 0, fixed).getChargeDays());
+
+        // On a charged weekend, the same holiday is still free
+        Tool weekendTool = new Tool("TEST", new ToolPricing("Test", 100, false, true, false), "Test");
+        assertEquals(1, new RentalAgreement(weekendTool, 3, LocalDate.of(2020, 7, 3), 0, fixed).getChargeDays());
+    }
+
+    // Test 9
+    @Test
+    void shouldRoundAndFormatCentsExactly() {
+        // Discounts round half up to the nearest cent
+        assertEquals(40, Money.percentOf(398, 10));
+        assertEquals(112, Money.percentOf(447, 25));
+        assertEquals(150, Money.percentOf(299, 50));
+        assertEquals(0, Money.percentOf(1, 49));
+        assertEquals(1, Money.percentOf(1, 50));
+
+        // Formatting matches the "#,##0.00" pattern
+        assertEquals("0.00", Money.format(0));
+        assertEquals("0.05", Money.format(5));
+        assertEquals("1.99", Money.format(199));
+        assertEquals("1,000.00", Money.format(100000));
+        assertEquals("12,345,678.90", Money.format(1234567890));
+        assertEquals("1,002,003.04", Money.format(100200304));
+    }
+
+    // Test 10
+    @Test
+    void shouldCheckoutBatchAndReportFailedRows() {
+        List<CheckoutRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            requests.add(new CheckoutRequest("JAKR", 9, LocalDate.of(2015, 7, 2).plusDays(9L * i), 0));
+        }
+        requests.set(7, new CheckoutRequest("JAKR", 0, LocalDate.of(2015, 7, 2), 0));
+        requests.set(42, new CheckoutRequest("NOPE", 3, LocalDate.of(2015, 7, 2), 0));
+        requests.set(99, new CheckoutRequest("LADW", 3, LocalDate.of(2020, 7, 2), 101));
+        // Before the first jackhammer price, and after whole chunks were committed
+        requests.set(60, new CheckoutRequest("JAKR", 9, LocalDate.of(1899, 6, 1), 0));
+
+        BatchCheckoutResult result = Sr0724Application.checkoutBatch(requests, 25);
+
+        assertEquals(116, result.getAgreements().size());
+        assertEquals(List.of(7, 42, 60, 99), result.getFailures().stream()
+                .map(BatchCheckoutResult.Failure::index).toList());
+        assertEquals("Rental days must be 1 or greater.", result.getFailures().getFirst().message());
+        assertEquals("The Jackhammer has no price on 1899-06-01.", result.getFailures().get(2).message());
+        assertEquals(1495, result.getAgreements().getFirst().getFinalChargeCents());
+
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            long count = session.createSelectionQuery("select count(*) from RentalAgreement", Long.class)
+                    .getSingleResult();
+            assertEquals(116, count);
+        }
+    }
+
+    // Test 11
+    @Test
+    void shouldImportCsvAndNdjsonFiles(@TempDir Path tempDir) throws IOException {
+        Path csv = tempDir.resolve("checkouts.csv");
+        Files.writeString(csv, """
+                tool code,rental days,checkout date,discount percent
+                JAKR,9,7/2/15,0
+                LADW,3,7/2/20,10
+                CHNS,five,7/2/15,25
+                NOPE,3,7/2/15,0
+
+                JAKD,6,9/3/15,0
+                """);
+
+        Path receipts = tempDir.resolve("receipts.ndjson");
+        ImportSummary csvSummary = BulkImporter.importFile(csv, receipts);
+        assertEquals(5, csvSummary.getLinesRead());
+        assertEquals(3, csvSummary.getAgreementsStored());
+        assertEquals(2, csvSummary.getErrorCount());
+        assertEquals(List.of(
+                "Line 4: Something is wrong with the rental days arg. Make sure it is an integer value.",
+                "Line 5: No tool exists with the code \"NOPE\"."), csvSummary.getErrorSamples());
+        assertEquals(3, Files.readAllLines(receipts).size());
+
+        // Only a first line naming the columns is a header; a bad first row is reported like any other
+        Path headerless = tempDir.resolve("headerless.csv");
+        Files.writeString(headerless, """
+                JAKR,nine,7/2/15,0
+                LADW,3,8/3/20,10
+                """);
+        ImportSummary headerlessSummary = BulkImporter.importFile(headerless);
+        assertEquals(2, headerlessSummary.getLinesRead());
+        assertEquals(1, headerlessSummary.getAgreementsStored());
+        assertEquals(List.of("Line 1: Something is wrong with the rental days arg. Make sure it is an integer value."),
+                headerlessSummary.getErrorSamples());
+        assertTrue(BulkImporter.isCsvHeader("toolCode,rentalDays,checkoutDate,discountPercent"));
+        assertTrue(BulkImporter.isCsvHeader(" Tool_Code , rental-days,CHECKOUT DATE,discount percent"));
+        assertFalse(BulkImporter.isCsvHeader("tool,days,date,discount"));
+
+        Path ndjson = tempDir.resolve("checkouts.ndjson");
+        Files.writeString(ndjson, """
+                {"toolCode": "CHNS", "rentalDays": 5, "checkoutDate": "7/2/15", "discountPercent": 25}
+                {"toolCode": "JAKR", "rentalDays": "4", "checkoutDate": "7/2/20", "discountPercent": 101}
+                """);
+
+        ImportSummary ndjsonSummary = BulkImporter.importFile(ndjson);
+        assertEquals(2, ndjsonSummary.getLinesRead());
+        assertEquals(1, ndjsonSummary.getAgreementsStored());
+        assertEquals(1, ndjsonSummary.getErrorCount());
+
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            List<RentalAgreement> agreements = session
+                    .createQuery("from RentalAgreement where tool.code = 'CHNS'", RentalAgreement.class)
+                    .getResultList();
+            assertEquals(1, agreements.size());
+            assertEquals(335, agreements.getFirst().getFinalChargeCents());
+        }
+
+        // A row dated before its tool type's first price is reported, and the rows after it, more than
+        // fill the queue between reading and pricing, are still imported
+        CatalogLoader.load(new StringReader("""
+                pricing,Auger,249,true,true,false,2016-01-01
+                tool,AUGR,Auger,Stihl
+                """), HibernateUtil.getSessionFactory());
+        try {
+            Path early = tempDir.resolve("early.csv");
+            StringBuilder lines = new StringBuilder("AUGR,3,7/2/15,0\n");
+            LocalDate checkoutDate = LocalDate.of(2030, 1, 1);
+            for (int i = 0; i < 5000; i++) {
+                lines.append("LADW,1,").append(checkoutDate.format(CheckoutRequest.CHECKOUT_DATE_FORMAT)).append(",0\n");
+                checkoutDate = checkoutDate.plusDays(2);
+            }
+            Files.writeString(early, lines);
+
+            ImportSummary earlySummary = BulkImporter.importFile(early);
+            assertEquals(5001, earlySummary.getLinesRead());
+            assertEquals(5000, earlySummary.getAgreementsStored());
+            assertEquals(List.of("Line 1: The Auger has no price on 2015-07-02."), earlySummary.getErrorSamples());
+        } finally {
+            try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+                Transaction transaction = session.beginTransaction();
+                session.createNativeMutationQuery("delete from tool where code = 'AUGR'").executeUpdate();
+                session.createNativeMutationQuery("delete from tool_pricing_version where tool_type = 'Auger'")
+                        .executeUpdate();
+                session.createNativeMutationQuery("delete from tool_pricing where tool_type = 'Auger'")
+                        .executeUpdate();
+                transaction.commit();
+            }
+            ToolCatalog.invalidateAll();
+        }
+    }
+
+    // Test 12
+    @Test
+    void shouldServeCatalogFromCacheUntilPricingChanges() {
+        ToolCatalog.invalidateAll();
+        long hits = ToolCatalog.getHits();
+        long misses = ToolCatalog.getMisses();
+
+        Sr0724Application.main(new String[] {"JAKD", "6", "9/3/15", "0"});
+        Sr0724Application.main(new String[] {"JAKD", "6", "9/3/15", "0"});
+        assertEquals(misses + 1, ToolCatalog.getMisses());
+        assertEquals(hits + 1, ToolCatalog.getHits());
+        assertNull(ToolCatalog.get("NOPE"));
+
+        // Changing the jackhammer pricing drops the cached jackhammers
+        long version = publishVersion("Jackhammer", LocalDate.now(), 399, true, false, false);
+        try {
+            assertEquals(399, ToolCatalog.get("JAKD").getToolPricing().getDailyChargeCents());
+            assertEquals(misses + 3, ToolCatalog.getMisses());
+        } finally {
+            withdrawVersion(version);
+        }
+        assertEquals(299, ToolCatalog.get("JAKR").getToolPricing().getDailyChargeCents());
+
+        // A checkout that reads the catalog between the flush and the commit caches the old price,
+        // which the commit must still drop
+        long committed;
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            Transaction transaction = session.beginTransaction();
+            ToolPricingVersion pending = session.get(ToolPricing.class, "Jackhammer")
+                    .addVersion(LocalDate.now(), 399, true, false, false);
+            session.persist(pending);
+            session.flush();
+            assertEquals(299, ToolCatalog.get("JAKD").getToolPricing().getDailyChargeCents());
+            transaction.commit();
+            committed = pending.getId();
+        }
+        try {
+            assertEquals(399, ToolCatalog.get("JAKD").getToolPricing().getDailyChargeCents());
+        } finally {
+            withdrawVersion(committed);
+        }
+
+        // A rolled-back change leaves the cache alone
+        Tool cached = ToolCatalog.get("JAKD");
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            Transaction transaction = session.beginTransaction();
+            session.persist(session.get(ToolPricing.class, "Jackhammer")
+                    .addVersion(LocalDate.now(), 499, true, false, false));
+            session.flush();
+            transaction.rollback();
+        }
+        assertSame(cached, ToolCatalog.get("JAKD"));
+        assertEquals(299, cached.getToolPricing().getDailyChargeCents());
+
+        // Loads that overlap a price change never leave the old price cached after it commits
+        AtomicBoolean changing = new AtomicBoolean(true);
+        List<CompletableFuture<Void>> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            readers.add(CompletableFuture.runAsync(() -> {
+                while (changing.get()) {
+                    ToolCatalog.get("JAKD");
+                    ToolCatalog.getByType("Jackhammer");
+                }
+            }));
+        }
+        try {
+            for (int round = 0; round < 20; round++) {
+                long changed = publishVersion("Jackhammer", LocalDate.now(), 399, true, false, false);
+                assertEquals(399, ToolCatalog.get("JAKD").getToolPricing().getDailyChargeCents());
+                assertEquals(399, ToolCatalog.getByType("Jackhammer").getFirst().getToolPricing().getDailyChargeCents());
+                withdrawVersion(changed);
+                assertEquals(299, ToolCatalog.get("JAKD").getToolPricing().getDailyChargeCents());
+            }
+        } finally {
+            changing.set(false);
+            readers.forEach(CompletableFuture::join);
+        }
+    }
+
+    // Store a new pricing version and return its id
+    private static long publishVersion(String toolType, LocalDate effectiveFrom, long dailyChargeCents,
+                                       boolean weekdayCharge, boolean weekendCharge, boolean holidayCharge) {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            Transaction transaction = session.beginTransaction();
+            ToolPricingVersion version = session.get(ToolPricing.class, toolType)
+                    .addVersion(effectiveFrom, dailyChargeCents, weekdayCharge, weekendCharge, holidayCharge);
+            session.persist(version);
+            transaction.commit();
+            return version.getId();
+        }
+    }
+
+    private static void withdrawVersion(long id) {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            Transaction transaction = session.beginTransaction();
+            session.remove(session.get(ToolPricingVersion.class, id));
+            transaction.commit();
+        }
+    }
+
+    // Test 13
+    @Test
+    void shouldScaleConcurrentCheckoutsWithPoolSize() {
+        checkConcurrentCheckouts(1);
+        checkConcurrentCheckouts(8);
+    }
+
+    // Run 16 concurrent checkouts against a separate database with the given pool size. The pool hands
+    // out that many connections at once, and CheckoutService runs no more checkouts than that, so
+    // checkouts queue for a permit rather than for a connection.
+    private static void checkConcurrentCheckouts(int poolSize) {
+        Map<String, Object> settings = Map.of(
+                "hibernate.connection.url", "jdbc:h2:mem:pool" + poolSize + ";DB_CLOSE_DELAY=-1",
+                "hibernate.hikari.maximumPoolSize", String.valueOf(poolSize),
+                "hibernate.hikari.minimumIdle", String.valueOf(poolSize),
+                "hibernate.show_sql", "false");
+
+        try (SessionFactory sessionFactory = HibernateUtil.buildSessionFactory(settings)) {
+            CatalogLoader.replicate(HibernateUtil.getSessionFactory(), sessionFactory);
+            HikariDataSource dataSource = sessionFactory.unwrap(SessionFactoryImplementor.class)
+                    .getServiceRegistry()
+                    .requireService(ConnectionProvider.class)
+                    .unwrap(HikariDataSource.class);
+            HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+            assertEquals(poolSize, dataSource.getHikariConfigMXBean().getMaximumPoolSize());
+            assertEquals(poolSize, CheckoutService.poolSize(sessionFactory));
+
+            // Every connection in the pool can be in use at once
+            List<Session> sessions = new ArrayList<>();
+            try {
+                for (int i = 0; i < poolSize; i++) {
+                    Session session = sessionFactory.openSession();
+                    sessions.add(session);
+                    session.beginTransaction();
+                }
+                assertEquals(poolSize, pool.getActiveConnections());
+            } finally {
+                for (Session session : sessions) {
+                    session.getTransaction().rollback();
+                    session.close();
+                }
+            }
+            assertEquals(0, pool.getActiveConnections());
+
+            // Watch the pool while the checkouts run
+            ToolAvailability.rebuild(sessionFactory);
+            List<CompletableFuture<RentalAgreement>> futures = new ArrayList<>();
+            int peakActive = 0;
+            int peakWaiting = 0;
+            try (CheckoutService service = new CheckoutService(sessionFactory)) {
+                for (int i = 0; i < 16; i++) {
+                    futures.add(service.checkoutAsync(
+                            new CheckoutRequest("JAKR", 9, LocalDate.of(2015, 7, 2).plusDays(10L * i), 0)));
+                }
+                while (!futures.stream().allMatch(CompletableFuture::isDone)) {
+                    peakActive = Math.max(peakActive, pool.getActiveConnections());
+                    peakWaiting = Math.max(peakWaiting, pool.getThreadsAwaitingConnection());
+                    Thread.onSpinWait();
+                }
+            } finally {
+                futures.forEach(CompletableFuture::join);
+                ToolAvailability.discard(sessionFactory);
+            }
+            assertTrue(peakActive <= poolSize, "peak of " + peakActive + " connections");
+            assertEquals(0, peakWaiting);
+
+            long count = sessionFactory.fromSession(session -> session
+                    .createSelectionQuery("select count(*) from RentalAgreement", Long.class)
+                    .getSingleResult());
+            assertEquals(16, count);
+        }
+    }
+
+    // Test 14
+    @Test
+    void shouldStoreEveryConcurrentCheckoutExactlyOnce() {
+        int checkouts = 2000;
+        List<CompletableFuture<RentalAgreement>> futures = new ArrayList<>();
+
+        try (CheckoutService service = new CheckoutService(HibernateUtil.getSessionFactory(), 4)) {
+            for (int i = 0; i < checkouts; i++) {
+                String toolCode = i % 2 == 0 ? "JAKR" : "LADW";
+                LocalDate checkoutDate = LocalDate.of(2020, 7, 2).plusDays(10L * (i / 2));
+                futures.add(service.checkoutAsync(new CheckoutRequest(toolCode, 1 + i % 10, checkoutDate, 0)));
+            }
+        }
+
+        Set<Long> ids = new HashSet<>();
+        for (CompletableFuture<RentalAgreement> future : futures) {
+            ids.add(future.join().getId());
+        }
+        assertEquals(checkouts, ids.size());
+
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            List<Long> storedIds = session.createSelectionQuery("select id from RentalAgreement", Long.class)
+                    .getResultList();
+            assertEquals(checkouts, storedIds.size());
+            assertEquals(ids, new HashSet<>(storedIds));
+        }
+    }
+
+    // Test 15
+    @Test
+    void shouldServeQuotesAndCheckoutsOverHttp() throws Exception {
+        try (CheckoutServer server = new CheckoutServer(0, new CheckoutService(HibernateUtil.getSessionFactory()));
+             HttpClient client = HttpClient.newHttpClient()) {
+            server.start();
+            String base = "http://localhost:" + server.getPort();
+            String params = "?toolCode=JAKR&rentalDays=4&checkoutDate=7/2/20&discountPercent=50";
+
+            HttpResponse<String> quote = client.send(HttpRequest.newBuilder(URI.create(base + "/quote" + params))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, quote.statusCode());
+            assertTrue(quote.body().contains("Final charge: $1.49"));
+
+            HttpResponse<String> checkout = client.send(HttpRequest.newBuilder(URI.create(base + "/checkout"))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString(params.substring(1)))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, checkout.statusCode());
+            assertEquals(quote.body(), checkout.body());
+
+            HttpResponse<String> rejected = client.send(HttpRequest.newBuilder(
+                    URI.create(base + "/checkout?toolCode=JAKR&rentalDays=0&checkoutDate=7/2/20&discountPercent=0"))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(400, rejected.statusCode());
+            assertTrue(rejected.body().startsWith("Rental days must be 1 or greater."));
+        }
+
+        // A database that cannot hand out a connection is a 503, and any other failure of the server a 500
+        try (SessionFactory exhausted = HibernateUtil.buildSessionFactory(Map.of(
+                "hibernate.connection.url", "jdbc:h2:mem:http-exhausted;DB_CLOSE_DELAY=-1",
+                "hibernate.hikari.maximumPoolSize", "1",
+                "hibernate.hikari.connectionTimeout", "250",
+                "hibernate.show_sql", "false"));
+             Session holder = exhausted.openSession();
+             CheckoutServer server = new CheckoutServer(0, new CheckoutService(exhausted));
+             HttpClient client = HttpClient.newHttpClient()) {
+            holder.beginTransaction();
+            server.start();
+
+            HttpResponse<String> unavailable = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" +
+                    server.getPort() + "/checkout?toolCode=JAKR&rentalDays=4&checkoutDate=7/2/20&discountPercent=0"))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(503, unavailable.statusCode());
+
+            holder.getTransaction().rollback();
+            ToolAvailability.discard(exhausted);
+        }
+        assertEquals(500, CheckoutServer.statusOf(new IllegalStateException("EntityManagerFactory is closed")));
+        assertEquals(400, CheckoutServer.statusOf(new RuntimeException("Rental days must be 1 or greater.")));
+
+        // Only the checkout was stored
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            long count = session.createSelectionQuery("select count(*) from RentalAgreement", Long.class)
+                    .getSingleResult();
+            assertEquals(1, count);
+        }
+    }
+
+    // Test 16
+    @Test
+    void shouldRecordCheckoutPhaseLatenciesWhenMetricsAreEnabled() {
+        CheckoutMetrics.reset();
+        CheckoutMetrics.setEnabled(true);
+        try {
+            Sr0724Application.main(new String[] {"JAKD", "6", "9/3/15", "0"});
+            assertThrows(RuntimeException.class,
+                    () -> Sr0724Application.main(new String[] {"JAKD", "6", "9/3/15", "101"}));
+
+            CheckoutMetrics.Snapshot snapshot = CheckoutMetrics.snapshot();
+            for (CheckoutMetrics.Phase phase : List.of(CheckoutMetrics.Phase.TOOL_LOOKUP,
+                    CheckoutMetrics.Phase.PRICING, CheckoutMetrics.Phase.INSERT, CheckoutMetrics.Phase.COMMIT,
+                    CheckoutMetrics.Phase.PRINT, CheckoutMetrics.Phase.TOTAL)) {
+                CheckoutMetrics.PhaseLatency latency = snapshot.latencies().get(phase);
+                assertEquals(1, latency.count(), phase.name());
+                assertTrue(latency.p50() > 0 && latency.p50() <= latency.p999(), phase.name());
+            }
+            assertEquals(1, snapshot.validationRejections());
+            assertNotNull(snapshot.hibernate());
+            assertEquals(1, snapshot.hibernate().entityInserts());
+            assertTrue(snapshot.hibernate().flushes() >= 1);
+        } finally {
+            CheckoutMetrics.setEnabled(false);
+            CheckoutMetrics.reset();
+        }
+
+        // Nothing is collected once disabled
+        Sr0724Application.main(new String[] {"JAKD", "6", "9/3/15", "0"});
+        assertEquals(0, CheckoutMetrics.snapshot().latencies().get(CheckoutMetrics.Phase.TOTAL).count());
+        assertNull(CheckoutMetrics.snapshot().hibernate());
+    }
+
+    // Test 17
+    @Test
+    void shouldReportHistogramPercentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 100_000; nanos++) {
+            histogram.record(nanos * 1000);
+        }
+
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(50_000_000, histogram.getPercentile(50), 50_000_000 * 0.07);
+        assertEquals(99_000_000, histogram.getPercentile(99), 99_000_000 * 0.07);
+        assertEquals(99_900_000, histogram.getPercentile(99.9), 99_900_000 * 0.07);
+        assertEquals(0, new LatencyHistogram().getPercentile(50));
+    }
+
+    // Test 18
+    @Test
+    void shouldRenderReceiptsAsTextAndJson() {
+        Tool tool = new Tool("LADW", new ToolPricing("Ladder", 199, true, true, false), "Werner \"Pro\"");
+        RentalAgreement agreement = new RentalAgreement(tool, 3, LocalDate.of(2020, 7, 2), 10);
+
+        String expectedText = """
+                Tool code: LADW
+                Tool type: Ladder
+                Tool brand: Werner "Pro"
+                Rental days: 3
+                Check out date: 07/02/20
+                Due date: 07/05/20
+                Daily rental charge: $1.99
+                Charge days: 2
+                Pre-discount charge: $3.98
+                Discount percent: 10%
+                Discount amount: $0.40
+                Final charge: $3.58
+                """.replace("\n", System.lineSeparator());
+        assertEquals(expectedText, ReceiptRenderer.render(agreement, ReceiptRenderer.Format.TEXT));
+
+        String expectedJson = "{\"toolCode\":\"LADW\",\"toolType\":\"Ladder\",\"toolBrand\":\"Werner \\\"Pro\\\"\"," +
+                "\"rentalDays\":3,\"checkoutDate\":\"2020-07-02\",\"dueDate\":\"2020-07-05\"," +
+                "\"dailyRentalCharge\":1.99,\"chargeDays\":2,\"preDiscountCharge\":3.98,\"discountPercent\":10," +
+                "\"discountAmount\":0.40,\"finalCharge\":3.58}\n";
+        assertEquals(expectedJson, ReceiptRenderer.render(agreement, ReceiptRenderer.Format.JSON));
+
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        ReceiptRenderer.render(agreement, ReceiptRenderer.Format.JSON, buffer);
+        ReceiptRenderer.render(agreement, ReceiptRenderer.Format.JSON, buffer);
+        assertEquals(expectedJson + expectedJson,
+                new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+        assertThrows(BufferOverflowException.class,
+                () -> ReceiptRenderer.render(agreement, ReceiptRenderer.Format.TEXT, ByteBuffer.allocate(16)));
+    }
+
+    // Test 19
+    @Test
+    void shouldReplayJournaledAgreements(@TempDir Path tempDir) throws IOException {
+        Path file = tempDir.resolve("rentals.journal");
+        int checkouts = 200;
+        List<CompletableFuture<RentalAgreement>> futures = new ArrayList<>();
+        RentalJournal journal = RentalJournal.open(file);
+        RentalJournal.setActive(journal);
+
+        try (CheckoutService service = new CheckoutService(HibernateUtil.getSessionFactory(), 4)) {
+            for (int i = 0; i < checkouts; i++) {
+                String toolCode = i % 2 == 0 ? "CHNS" : "LADW";
+                LocalDate checkoutDate = LocalDate.of(2020, 7, 2).plusDays(10L * (i / 2));
+                Integer storeId = i % 3 == 0 ? null : i % 3;
+                futures.add(service.checkoutAsync(new CheckoutRequest(toolCode, 1 + i % 10, checkoutDate, i % 50),
+                        storeId));
+            }
+        } finally {
+            futures.forEach(CompletableFuture::join);
+            journal.close();
+        }
+
+        // Concurrent checkouts share fsyncs
+        assertTrue(journal.getSyncCount() < checkouts);
+        assertNull(RentalJournal.getActive());
+
+        Map<Long, Long> expected = new HashMap<>();
+        Map<Long, Integer> expectedStoreIds = new HashMap<>();
+        for (CompletableFuture<RentalAgreement> future : futures) {
+            expected.put(future.join().getId(), future.join().getFinalChargeCents());
+            expectedStoreIds.put(future.join().getId(), future.join().getStoreId());
+        }
+
+        // Lose the database, then rebuild it from the journal
+        tearDown();
+        assertEquals(checkouts, RentalJournal.replay(file, HibernateUtil.getSessionFactory()));
+        assertEquals(0, RentalJournal.replay(file, HibernateUtil.getSessionFactory()));
+
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            List<RentalAgreement> stored = session.createSelectionQuery("from RentalAgreement", RentalAgreement.class)
+                    .getResultList();
+            assertEquals(checkouts, stored.size());
+            for (RentalAgreement agreement : stored) {
+                assertEquals(expected.get(agreement.getId()), agreement.getFinalChargeCents());
+                assertEquals(expectedStoreIds.get(agreement.getId()), agreement.getStoreId());
+            }
+        }
+
+        // A torn record left by a crash is cut off, and appending continues after the last good record
+        long length = Files.size(file);
+        Files.write(file, new byte[] {0, 0, 0, 90, 1, 2, 3}, StandardOpenOption.APPEND);
+        tearDown();
+        try (RentalJournal reopened = RentalJournal.open(file)) {
+            assertEquals(length, Files.size(file));
+            reopened.append(List.of(RentalAgreementRow.of(futures.get(0).join())));
+        }
+        assertEquals(checkouts, RentalJournal.replay(file, HibernateUtil.getSessionFactory()));
+
+        // Replayed in chunks, each committed on its own; the repeated record in the last chunk is skipped
+        tearDown();
+        assertEquals(checkouts, RentalJournal.replay(file, HibernateUtil.getSessionFactory(), 64));
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            assertEquals(checkouts, session.createSelectionQuery("select count(*) from RentalAgreement", Long.class)
+                    .getSingleResult());
+        }
+
+        // A journal that cannot be written does not fail a checkout that was stored; it is reported instead
+        long unjournaled = RentalJournal.getUnjournaledCount();
+        RentalJournal.setActive(journal);
+        try (CheckoutService service = new CheckoutService(HibernateUtil.getSessionFactory())) {
+            RentalAgreement agreement = service.checkout(new CheckoutRequest("JAKD", 6, LocalDate.of(2015, 9, 3), 0));
+            assertEquals(unjournaled + 1, RentalJournal.getUnjournaledCount());
+            try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+                assertNotNull(session.get(RentalAgreement.class, agreement.getId()));
+            }
+        } finally {
+            RentalJournal.setActive(null);
+        }
+    }
+
+    // Test 20
+    @Test
+    void shouldPageThroughAgreementsByKeyset() {
+        List<CheckoutRequest> requests = new ArrayList<>();
+        String[] toolCodes = {"CHNS", "LADW", "JAKD", "JAKR"};
+        for (int i = 0; i < 250; i++) {
+            requests.add(new CheckoutRequest(toolCodes[i % 4], 3, LocalDate.of(2020, 1, 1).plusDays(3L * (i / 4)), 0));
+        }
+        Sr0724Application.checkoutBatch(requests);
+
+        AgreementReports reports = new AgreementReports(HibernateUtil.getSessionFactory());
+
+        // Pages pick up exactly where the previous one ended, in (checkout date, id) order
+        List<RentalAgreement> listed = new ArrayList<>();
+        AgreementReports.Cursor cursor = null;
+        do {
+            AgreementReports.Page page = reports.listByCheckoutDate(LocalDate.of(2020, 1, 11),
+                    LocalDate.of(2020, 1, 30), cursor, 7);
+            assertTrue(page.agreements().size() <= 7);
+            listed.addAll(page.agreements());
+            cursor = page.next();
+        } while (cursor != null);
+
+        assertEquals(24, listed.size());
+        assertEquals(24, listed.stream().map(RentalAgreement::getId).distinct().count());
+        for (int i = 1; i < listed.size(); i++) {
+            RentalAgreement previous = listed.get(i - 1);
+            RentalAgreement current = listed.get(i);
+            assertTrue(previous.getCheckoutDate().isBefore(current.getCheckoutDate())
+                    || (previous.getCheckoutDate().equals(current.getCheckoutDate()) && previous.getId() < current.getId()));
+        }
+
+        AgreementReports.Page chainsaws = reports.listByToolCode("CHNS", null, 50);
+        assertEquals(50, chainsaws.agreements().size());
+        AgreementReports.Page lastChainsaws = reports.listByToolCode("CHNS", chainsaws.next(), 50);
+        assertEquals(13, lastChainsaws.agreements().size());
+        assertNull(lastChainsaws.next());
+        assertEquals(124, reports.forEachByToolType("Jackhammer", agreement -> assertEquals("Jackhammer", agreement.getTool().getType())));
+        assertEquals(0, reports.forEachByToolType("Drill", agreement -> fail()));
+        assertEquals(24, reports.forEachByCheckoutDate(LocalDate.of(2020, 1, 11), LocalDate.of(2020, 1, 30), agreement -> {}));
+
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            List<String> indexes = session.createNativeQuery("select index_name from information_schema.indexes " +
+                    "where table_name = 'RENTAL_AGREEMENT'", String.class).getResultList();
+            assertTrue(indexes.contains("IDX_RENTAL_AGREEMENT_CHECKOUT_DATE"));
+            assertTrue(indexes.contains("IDX_RENTAL_AGREEMENT_TOOL_CODE"));
+        }
+    }
+
+    // Test 21
+    @Test
+    void shouldRejectOverlappingRentalsOfTheSameTool() {
+        try (CheckoutService service = new CheckoutService(HibernateUtil.getSessionFactory())) {
+            service.checkout(new CheckoutRequest("JAKR", 9, LocalDate.of(2015, 7, 2), 0));
+
+            RuntimeException exception = assertThrows(RuntimeException.class,
+                    () -> service.checkout(new CheckoutRequest("JAKR", 2, LocalDate.of(2015, 7, 10), 0)));
+            assertEquals("Tool JAKR is already rented out between 07/10/15 and 07/12/15.", exception.getMessage());
+
+            // Back-to-back rentals and other tools are fine
+            service.checkout(new CheckoutRequest("JAKR", 3, LocalDate.of(2015, 7, 11), 0));
+            service.checkout(new CheckoutRequest("JAKD", 9, LocalDate.of(2015, 7, 2), 0));
+            service.checkout(new CheckoutRequest("JAKR", 1, LocalDate.of(2015, 7, 1), 0));
+
+            // Only one of many concurrent checkouts of the same tool and dates succeeds
+            List<CompletableFuture<RentalAgreement>> futures = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                futures.add(service.checkoutAsync(new CheckoutRequest("LADW", 5, LocalDate.of(2020, 7, 1), 0)));
+            }
+            assertEquals(1, futures.stream().filter(future -> {
+                try {
+                    future.join();
+                    return true;
+                } catch (RuntimeException e) {
+                    return false;
+                }
+            }).count());
+        }
+
+        assertEquals(List.of("JAKD", "JAKR"), ToolAvailability.getAvailableTools("Jackhammer",
+                LocalDate.of(2015, 7, 14), LocalDate.of(2015, 7, 20)).stream().map(Tool::getCode).toList());
+        assertEquals(List.of("JAKD"), ToolAvailability.getAvailableTools("Jackhammer",
+                LocalDate.of(2015, 7, 11), LocalDate.of(2015, 7, 12)).stream().map(Tool::getCode).toList());
+        assertTrue(ToolAvailability.getAvailableTools("Jackhammer", LocalDate.of(2015, 7, 10), LocalDate.of(2015, 7, 11))
+                .isEmpty());
+        assertTrue(ToolAvailability.getAvailableTools("Ladder", LocalDate.of(2020, 7, 3), LocalDate.of(2020, 7, 4)).isEmpty());
+
+        // Batches report the overlapping rows, and a rebuild from the table sees the same bookings
+        BatchCheckoutResult result = Sr0724Application.checkoutBatch(List.of(
+                new CheckoutRequest("CHNS", 3, LocalDate.of(2020, 9, 1), 0),
+                new CheckoutRequest("CHNS", 3, LocalDate.of(2020, 9, 2), 0)));
+        assertEquals(1, result.getAgreements().size());
+        assertEquals(1, result.getFailures().getFirst().index());
+
+        ToolAvailability.rebuild();
+        assertFalse(ToolAvailability.isAvailable("CHNS", LocalDate.of(2020, 9, 3), LocalDate.of(2020, 9, 5)));
+        assertTrue(ToolAvailability.isAvailable("CHNS", LocalDate.of(2020, 9, 4), LocalDate.of(2020, 9, 5)));
+        assertFalse(ToolAvailability.isAvailable("JAKR", LocalDate.of(2015, 7, 1), LocalDate.of(2015, 7, 2)));
+
+        // A rebuild keeps a reservation whose agreement is not stored yet, until it is released
+        RentalAgreement unstored = new RentalAgreement(ToolCatalog.get("LADW"), 3, LocalDate.of(2021, 5, 1), 0);
+        ToolAvailability.reserve(unstored);
+        ToolAvailability.rebuild();
+        assertThrows(RuntimeException.class, () -> ToolAvailability.reserve(
+                new RentalAgreement(ToolCatalog.get("LADW"), 1, LocalDate.of(2021, 5, 2), 0)));
+        ToolAvailability.release(unstored);
+        ToolAvailability.rebuild();
+        assertTrue(ToolAvailability.isAvailable("LADW", LocalDate.of(2021, 5, 1), LocalDate.of(2021, 5, 4)));
+
+        // A reservation that a rebuild merged with the stored rental before it is still freed by release
+        RentalAgreement adjoining = new RentalAgreement(ToolCatalog.get("CHNS"), 2, LocalDate.of(2020, 9, 4), 0);
+        ToolAvailability.reserve(adjoining);
+        ToolAvailability.rebuild();
+        ToolAvailability.release(adjoining);
+        assertTrue(ToolAvailability.isAvailable("CHNS", LocalDate.of(2020, 9, 4), LocalDate.of(2020, 9, 6)));
+        assertFalse(ToolAvailability.isAvailable("CHNS", LocalDate.of(2020, 9, 3), LocalDate.of(2020, 9, 4)));
+
+        // Rebuilds running alongside checkouts never let the same tool and dates be booked twice
+        try (CheckoutService service = new CheckoutService(HibernateUtil.getSessionFactory())) {
+            List<CompletableFuture<RentalAgreement>> futures = new ArrayList<>();
+            CompletableFuture<Void> rebuilds = CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < 20; i++) {
+                    ToolAvailability.rebuild();
+                }
+            });
+            for (int i = 0; i < 50; i++) {
+                futures.add(service.checkoutAsync(new CheckoutRequest("JAKD", 4, LocalDate.of(2022, 3, 1), 0)));
+            }
+            rebuilds.join();
+            assertEquals(1, futures.stream().filter(future -> {
+                try {
+                    future.join();
+                    return true;
+                } catch (RuntimeException e) {
+                    return false;
+                }
+            }).count());
+        }
+    }
+
+    // Test 22
+    @Test
+    void shouldMemoizeQuotesUntilPricingChanges() {
+        QuoteCache.invalidateAll();
+        long hits = QuoteCache.getHits();
+
+        try (CheckoutService service = new CheckoutService(HibernateUtil.getSessionFactory())) {
+            RentalAgreement first = service.quote("LADW", 3, LocalDate.of(2020, 7, 2), 10);
+            RentalAgreement second = service.quote("LADW", 3, LocalDate.of(2020, 7, 2), 10);
+            assertEquals(358, first.getFinalChargeCents());
+            assertSame(first.getChargeSummary(), second.getChargeSummary());
+            assertEquals(hits + 1, QuoteCache.getHits());
+            assertEquals(1, QuoteCache.size());
+
+            // Quotes store nothing
+            try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+                assertEquals(0, session.createSelectionQuery("select count(*) from RentalAgreement", Long.class)
+                        .getSingleResult());
+            }
+
+            // A price change evicts the quotes made with the old price
+            long version = publishVersion("Ladder", LocalDate.of(2020, 7, 1), 299, true, true, false);
+            try {
+                assertEquals(0, QuoteCache.size());
+                assertEquals(538, service.quote("LADW", 3, LocalDate.of(2020, 7, 2), 10).getFinalChargeCents());
+            } finally {
+                withdrawVersion(version);
+            }
+
+            // The cache stays bounded
+            for (int i = 0; i < QuoteCache.MAX_ENTRIES + 100; i++) {
+                service.quote("JAKD", 1 + i % 30, LocalDate.of(2015, 1, 1).plusDays(i / 30), 0);
+            }
+            assertEquals(QuoteCache.MAX_ENTRIES, QuoteCache.size());
+        }
+    }
+
+    // Test 23
+    @Test
+    void shouldMigrateAndLoadCatalogIntoDurableDatabase(@TempDir Path tempDir) throws IOException {
+        Map<String, Object> durable = Map.of(
+                "hibernate.connection.url", "jdbc:h2:file:" + tempDir.resolve("sr0724") + ";CACHE_SIZE=65536;WRITE_DELAY=0",
+                "hibernate.hbm2ddl.auto", "validate",
+                SchemaMigrations.MIGRATE_SETTING, "true");
+
+        StringBuilder catalog = new StringBuilder("# tools\n");
+        for (int i = 0; i < 50; i++) {
+            catalog.append("pricing,Type").append(i).append(',').append(100 + i).append(",true,false,true\n");
+        }
+        for (int i = 0; i < 5000; i++) {
+            catalog.append("tool,T").append(i).append(",Type").append(i % 50).append(",Brand").append(i).append('\n');
+        }
+        Path file = tempDir.resolve("catalog.csv");
+        Files.writeString(file, catalog);
+
+        try (SessionFactory sessionFactory = HibernateUtil.buildSessionFactory(durable)) {
+            assertEquals(new CatalogLoader.Result(50, 5000), CatalogLoader.load(file, sessionFactory));
+            // Loading the same file again changes nothing
+            assertEquals(new CatalogLoader.Result(50, 5000), CatalogLoader.load(file, sessionFactory));
+            CatalogLoader.loadStandard(sessionFactory);
+
+            try (Session session = sessionFactory.openSession()) {
+                Transaction transaction = session.beginTransaction();
+                session.persist(new RentalAgreement(session.get(Tool.class, "T7"), 3, LocalDate.of(2020, 7, 2), 0));
+                transaction.commit();
+            }
+        }
+
+        // A restart keeps the data and does not re-run the migrations
+        Files.writeString(file, "pricing,Type7,250,true,true,true\n");
+        try (SessionFactory sessionFactory = HibernateUtil.buildSessionFactory(durable);
+             Session session = sessionFactory.openSession()) {
+            assertEquals(new CatalogLoader.Result(1, 0), CatalogLoader.load(file, sessionFactory));
+
+            assertEquals(5004, session.createSelectionQuery("select count(*) from Tool", Long.class).getSingleResult());
+            assertEquals(1, session.createSelectionQuery("select count(*) from RentalAgreement", Long.class)
+                    .getSingleResult());
+            assertEquals(250, session.get(ToolPricing.class, "Type7").getDailyChargeCents());
+            assertEquals(SchemaMigrations.MIGRATIONS.size(), session
+                    .createNativeQuery("select count(*) from schema_version", Long.class).getSingleResult());
+        }
+
+        Files.writeString(file, "tool,T1,Type1,Brand1\ngadget,G1\n");
+        RuntimeException exception = assertThrows(RuntimeException.class,
+                () -> CatalogLoader.load(file, HibernateUtil.getSessionFactory()));
+        assertEquals("Line 2: Each line should start with \"pricing\" or \"tool\".", exception.getMessage());
+    }
+
+    // Test 24
+    @Test
+    void shouldPriceAgreementsFromTheVersionInEffectOnTheCheckoutDate() {
+        long version = 0;
+        try (CheckoutService service = new CheckoutService(HibernateUtil.getSessionFactory())) {
+            long before = service.checkout(new CheckoutRequest("CHNS", 3, LocalDate.of(2020, 6, 29), 0)).getId();
+            version = publishVersion("Chainsaw", LocalDate.of(2020, 7, 6), 249, true, false, true);
+            long after = service.checkout(new CheckoutRequest("CHNS", 3, LocalDate.of(2020, 7, 13), 0)).getId();
+
+            // Quotes use the price on their checkout date, not today's
+            assertEquals(447, service.quote("CHNS", 3, LocalDate.of(2020, 6, 29), 0).getFinalChargeCents());
+            assertEquals(747, service.quote("CHNS", 3, LocalDate.of(2020, 7, 6), 0).getFinalChargeCents());
+
+            // Stored agreements keep the version they were priced with and reprice exactly
+            try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+                RentalAgreement first = session.get(RentalAgreement.class, before);
+                RentalAgreement second = session.get(RentalAgreement.class, after);
+                assertEquals(ToolPricingVersion.EARLIEST, first.getPricingVersion().getEffectiveFrom());
+                assertEquals(149, first.getDailyRentalChargeCents());
+                assertEquals(447, first.getFinalChargeCents());
+                assertEquals(version, second.getPricingVersion().getId());
+                assertEquals(747, second.getFinalChargeCents());
+                assertEquals(first.getChargeSummary().toString(), first.recalculateChargeSummary().toString());
+                assertEquals(second.getChargeSummary().toString(), second.recalculateChargeSummary().toString());
+
+                ToolPricing pricing = session.get(ToolPricing.class, "Chainsaw");
+                assertEquals(2, pricing.getVersions().size());
+                assertEquals(249, pricing.getCurrentVersion().getDailyChargeCents());
+                RuntimeException exception = assertThrows(RuntimeException.class,
+                        () -> pricing.getVersion(LocalDate.of(1899, 12, 31)));
+                assertEquals("The Chainsaw has no price on 1899-12-31.", exception.getMessage());
+                exception = assertThrows(RuntimeException.class,
+                        () -> pricing.addVersion(LocalDate.of(2020, 7, 6), 199, true, false, true));
+                assertEquals("The Chainsaw already has a price from 2020-07-06.", exception.getMessage());
+            }
+        } finally {
+            // The version can only be withdrawn once no agreement references it
+            try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+                Transaction transaction = session.beginTransaction();
+                session.createMutationQuery("delete from RentalAgreement").executeUpdate();
+                transaction.commit();
+            }
+            if (version != 0) {
+                withdrawVersion(version);
+            }
+        }
+    }
+
+    // Test 25
+    @Test
+    void shouldListTenThousandAgreementsInOneStatement() {
+        Map<String, Object> settings = Map.of(
+                "hibernate.connection.url", "jdbc:h2:mem:fetchplan;DB_CLOSE_DELAY=-1",
+                "hibernate.generate_statistics", "true",
+                "hibernate.show_sql", "false");
+
+        try (SessionFactory sessionFactory = HibernateUtil.buildSessionFactory(settings)) {
+            ToolPricing chainsaws = new ToolPricing("Chainsaw", 149, true, false, true);
+            ToolPricing ladders = new ToolPricing("Ladder", 199, true, true, false);
+            Tool[] tools = new Tool[] {new Tool("CHNS", chainsaws, "Stihl"), new Tool("LADW", ladders, "Werner")};
+            sessionFactory.inTransaction(session -> {
+                session.persist(chainsaws);
+                session.persist(ladders);
+                for (Tool tool : tools) {
+                    session.persist(tool);
+                }
+                for (int i = 0; i < 10_000; i++) {
+                    session.persist(new RentalAgreement(tools[i % 2], 1 + i % 7,
+                            LocalDate.of(2020, 1, 1).plusDays(i % 366), i % 20));
+                }
+            });
+
+            AgreementReports reports = new AgreementReports(sessionFactory);
+            Statistics statistics = sessionFactory.getStatistics();
+            LocalDate from = LocalDate.of(2020, 1, 1);
+            LocalDate to = LocalDate.of(2020, 12, 31);
+
+            // Entities come with their tools, pricings and pricing versions in the same select
+            statistics.clear();
+            List<RentalAgreement> agreements = reports.listByCheckoutDate(from, to, null, 10_000).agreements();
+            assertEquals(10_000, agreements.size());
+            assertEquals(1, statistics.getPrepareStatementCount());
+            assertEquals("Stihl", agreements.getFirst().getTool().getBrand());
+            String receipt = agreements.getLast().toReceipt();
+
+            // Summaries are a single select that loads no entities at all
+            statistics.clear();
+            List<AgreementSummary> summaries = reports.summarizeByCheckoutDate(from, to, null, 10_000).summaries();
+            assertEquals(10_000, summaries.size());
+            assertEquals(1, statistics.getPrepareStatementCount());
+            assertEquals(0, statistics.getEntityLoadCount());
+            assertEquals(receipt, summaries.getLast().toReceipt());
+
+            statistics.clear();
+            assertEquals(5_000, reports.forEachSummaryByToolCode("LADW",
+                    summary -> assertEquals("Ladder", summary.toolType())));
+            assertEquals(1, statistics.getPrepareStatementCount());
+
+            statistics.clear();
+            assertEquals(10_000, reports.forEachByCheckoutDate(from, to,
+                    agreement -> assertEquals(agreement.getChargeSummary().getFinalChargeCents(),
+                            AgreementSummary.of(agreement).finalChargeCents())));
+            assertEquals(1, statistics.getPrepareStatementCount());
+        }
+    }
+
+    // Test 26
+    @Test
+    void shouldRouteStoresToShardsAndFanOutReports() {
+        try (StoreShards shards = StoreShards.inMemory(3)) {
+            shards.replicateCatalog();
+            // Replicating again changes nothing
+            shards.replicateCatalog();
+            for (int store = 0; store < 3; store++) {
+                try (Session session = shards.getSessionFactory(store).openSession()) {
+                    assertEquals(4, session.createSelectionQuery("select count(*) from Tool", Long.class)
+                            .getSingleResult());
+                }
+            }
+
+            // Shards price checkouts from their own copy of the catalog, not from ToolCatalog
+            long lookups = ToolCatalog.getHits() + ToolCatalog.getMisses();
+            assertEquals(0, shards.checkout(0, new CheckoutRequest("JAKR", 9, LocalDate.of(2015, 7, 2), 0))
+                    .getStoreId());
+            assertEquals(lookups, ToolCatalog.getHits() + ToolCatalog.getMisses());
+
+            // A tool is one tool whichever store rents it, so it cannot be rented for the same dates at
+            // another store, on the same shard or any other
+            for (int store : new int[] {1, 3}) {
+                RuntimeException exception = assertThrows(RuntimeException.class,
+                        () -> shards.checkout(store, new CheckoutRequest("JAKR", 2, LocalDate.of(2015, 7, 10), 0)));
+                assertEquals("Tool JAKR is already rented out between 07/10/15 and 07/12/15.", exception.getMessage());
+            }
+            assertFalse(shards.isAvailable(2, "JAKR", LocalDate.of(2015, 7, 10), LocalDate.of(2015, 7, 12)));
+            assertTrue(ToolAvailability.isAvailable("JAKR", LocalDate.of(2015, 7, 10), LocalDate.of(2015, 7, 12)));
+
+            List<CompletableFuture<RentalAgreement>> futures = new ArrayList<>();
+            for (int store = 0; store < 3; store++) {
+                for (int i = 0; i < 20; i++) {
+                    futures.add(shards.checkoutAsync(store, new CheckoutRequest("LADW", 1,
+                            LocalDate.of(2020, 1, 1).plusDays(2L * (20 * store + i)), 10)));
+                }
+            }
+            futures.forEach(CompletableFuture::join);
+
+            // Nothing went to HibernateUtil's database
+            try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+                assertEquals(0, session.createSelectionQuery("select count(*) from RentalAgreement", Long.class)
+                        .getSingleResult());
+            }
+
+            LocalDate from = LocalDate.of(2015, 1, 1);
+            LocalDate to = LocalDate.of(2020, 12, 31);
+            assertEquals(new StoreShards.Totals(61, 1495 + 60 * 179), shards.totalsByCheckoutDate(from, to));
+            assertEquals(new StoreShards.Totals(20, 20 * 179), shards.totalsByCheckoutDate(1, from, to));
+            assertEquals(Map.of(
+                    0, new StoreShards.Totals(21, 1495 + 20 * 179),
+                    1, new StoreShards.Totals(20, 20 * 179),
+                    2, new StoreShards.Totals(20, 20 * 179)), shards.totalsByStore(from, to));
+
+            List<StoreShards.ShardSummary> first = shards.summarizeByCheckoutDate(from, to, 5);
+            assertEquals(5, first.size());
+            assertEquals(0, first.getFirst().shard());
+            assertEquals("JAKR", first.getFirst().summary().toolCode());
+            for (int i = 1; i < 5; i++) {
+                assertEquals(LocalDate.of(2020, 1, 1).plusDays(2L * (i - 1)), first.get(i).summary().checkoutDate());
+            }
+            assertEquals(61, shards.summarizeByCheckoutDate(from, to, 100).size());
+
+            // Opening a fourth shard over the same databases moves no store away from its agreements
+            shards.checkout(5, new CheckoutRequest("LADW", 1, LocalDate.of(2021, 6, 1), 0));
+            List<Map<String, Object>> settings = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                settings.add(Map.of(
+                        "hibernate.connection.url", "jdbc:h2:mem:shard" + i + ";DB_CLOSE_DELAY=-1",
+                        "hibernate.show_sql", "false",
+                        "hibernate.hbm2ddl.auto", i < 3 ? "none" : "create-drop"));
+            }
+            try (StoreShards grown = new StoreShards(settings)) {
+                assertEquals(2, grown.shardOf(5));
+                assertEquals(1, grown.shardOf(9));
+                assertEquals(new StoreShards.Totals(1, 199),
+                        grown.totalsByCheckoutDate(5, LocalDate.of(2021, 1, 1), LocalDate.of(2021, 12, 31)));
+                assertThrows(RuntimeException.class,
+                        () -> grown.checkout(0, new CheckoutRequest("JAKR", 2, LocalDate.of(2015, 7, 10), 0)));
+                assertEquals(5, grown.checkout(5, new CheckoutRequest("LADW", 1, LocalDate.of(2021, 6, 2), 0))
+                        .getStoreId());
+            }
+        }
+    }
+
+    // Test 27
+    @Test
+    void shouldStoreWriteBehindCheckoutsInBatches() {
+        CheckoutService service = CheckoutService.writeBehind(HibernateUtil.getSessionFactory(), 4);
+        try {
+            // Far more checkouts than the queue holds: submit waits for the writer instead of failing
+            for (int i = 0; i < 200; i++) {
+                RentalAgreement agreement = service.checkout(
+                        new CheckoutRequest("LADW", 1, LocalDate.of(2020, 1, 1).plusDays(i), 0));
+                assertEquals(199, agreement.getFinalChargeCents());
+            }
+            service.flush();
+
+            WriteBehindQueue queue = service.getWriteBehindQueue();
+            assertEquals(0, queue.getQueuedCount());
+            assertEquals(0, queue.getFailedCount());
+            try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+                assertEquals(200, session.createSelectionQuery("select count(*) from RentalAgreement", Long.class)
+                        .getSingleResult());
+            }
+
+            // Bookings are taken at checkout, before anything is stored
+            RuntimeException exception = assertThrows(RuntimeException.class, () -> service.checkout(
+                    new CheckoutRequest("LADW", 1, LocalDate.of(2020, 1, 1), 0)));
+            assertEquals("Tool LADW is already rented out between 01/01/20 and 01/02/20.", exception.getMessage());
+
+            // An agreement that cannot be stored is dropped and its tool released, without holding up the
+            // rest of its batch
+            Tool unknown = new Tool("NOPE", ToolCatalog.get("JAKR").getToolPricing(), "Nobody");
+            queue.submit(new RentalAgreement(unknown, 3, LocalDate.of(2015, 7, 2), 0));
+            service.checkout(new CheckoutRequest("JAKR", 3, LocalDate.of(2015, 7, 2), 0));
+            service.flush();
+            assertEquals(1, queue.getFailedCount());
+            try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+                assertEquals(201, session.createSelectionQuery("select count(*) from RentalAgreement", Long.class)
+                        .getSingleResult());
+            }
+
+            service.checkout(new CheckoutRequest("JAKD", 3, LocalDate.of(2015, 7, 2), 0));
+        } finally {
+            service.close();
+        }
+
+        // Closing stores what was still queued, then turns checkouts away
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            assertEquals(202, session.createSelectionQuery("select count(*) from RentalAgreement", Long.class)
+                    .getSingleResult());
+        }
+        RuntimeException exception = assertThrows(RuntimeException.class,
+                () -> service.checkout(new CheckoutRequest("JAKD", 3, LocalDate.of(2016, 7, 2), 0)));
+        assertEquals("The write-behind queue is closed.", exception.getMessage());
+        assertTrue(ToolAvailability.isAvailable("JAKD", LocalDate.of(2016, 7, 2), LocalDate.of(2016, 7, 5)));
+
+        // A database the writer cannot open a session on fails each agreement, but the writer keeps
+        // draining the queue, so submit, flush and close all return
+        SessionFactory unreachable = HibernateUtil.buildSessionFactory(Map.of(
+                "hibernate.connection.url", "jdbc:h2:mem:unreachable;DB_CLOSE_DELAY=-1",
+                "hibernate.show_sql", "false"));
+        unreachable.close();
+        WriteBehindQueue failing = new WriteBehindQueue(unreachable, 2, 10, false);
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            for (int i = 0; i < 5; i++) {
+                failing.submit(new RentalAgreement(ToolCatalog.get("JAKR"), 1, LocalDate.of(2040, 1, 1).plusDays(i), 0));
+            }
+            failing.flush();
+            failing.close();
+        });
+        assertEquals(5, failing.getFailedCount());
+        ToolAvailability.discard(unreachable);
+
+        // A batch that times out waiting for a connection fails whole, rather than waiting out the
+        // timeout again for each of its agreements
+        try (SessionFactory exhausted = HibernateUtil.buildSessionFactory(Map.of(
+                "hibernate.connection.url", "jdbc:h2:mem:exhausted;DB_CLOSE_DELAY=-1",
+                "hibernate.hikari.maximumPoolSize", "1",
+                "hibernate.hikari.connectionTimeout", "250",
+                "hibernate.show_sql", "false"));
+             Session holder = exhausted.openSession()) {
+            holder.beginTransaction();
+
+            WriteBehindQueue starved = new WriteBehindQueue(exhausted, 40, 40, false);
+            long start = System.nanoTime();
+            for (int i = 0; i < 40; i++) {
+                starved.submit(new RentalAgreement(ToolCatalog.get("JAKR"), 1, LocalDate.of(2040, 1, 1).plusDays(i), 0));
+            }
+            starved.close();
+            assertEquals(40, starved.getFailedCount());
+            // One try per agreement would take at least 40 timeouts, or 10 seconds
+            assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(5)) < 0);
+
+            holder.getTransaction().rollback();
+            ToolAvailability.discard(exhausted);
+        }
+    }
+
+    // Test 28
+    @Test
+    void shouldAuditStoredChargesInParallelPartitions() {
+        String[] toolCodes = new String[] {"CHNS", "LADW", "JAKD", "JAKR"};
+        List<CheckoutRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            requests.add(new CheckoutRequest(toolCodes[i % 4], 1 + i % 5,
+                    LocalDate.of(2020, 6, 1).plusDays(6L * (i / 4)), i % 3 * 10));
+        }
+        assertEquals(400, Sr0724Application.checkoutBatch(requests).getAgreements().size());
+
+        AuditSummary clean = AgreementAudit.run(HibernateUtil.getSessionFactory(), 7, 4);
+        assertEquals(400, clean.getAgreementsChecked());
+        assertEquals(0, clean.getMismatchCount());
+        assertTrue(clean.getPartitions() > 1);
+
+        // Store wrong charges for every tenth agreement, and a calendar that no longer exists for one more
+        int corrupted;
+        long unknownCalendarId;
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            Transaction transaction = session.beginTransaction();
+            corrupted = session.createNativeMutationQuery("update rental_agreement" +
+                    " set final_charge_cents = final_charge_cents + 1 where mod(id, 10) = 0").executeUpdate();
+            unknownCalendarId = session.createSelectionQuery("select min(a.id) from RentalAgreement a" +
+                    " where mod(a.id, 10) <> 0", Long.class).getSingleResult();
+            session.createNativeMutationQuery("update rental_agreement set holiday_calendar = 'nowhere' where id = :id")
+                    .setParameter("id", unknownCalendarId)
+                    .executeUpdate();
+            transaction.commit();
+        }
+        assertTrue(corrupted > 0);
+
+        AuditSummary audit = AgreementAudit.run(HibernateUtil.getSessionFactory(), 7, 4);
+        assertEquals(400, audit.getAgreementsChecked());
+        assertEquals(corrupted + 1, audit.getMismatchCount());
+        assertTrue(audit.getMismatchSamples().contains("Agreement " + unknownCalendarId +
+                ": No holiday calendar is registered under the name \"nowhere\"."));
+        for (String mismatch : audit.getMismatchSamples()) {
+            assertTrue(mismatch.contains("expected") || mismatch.contains("nowhere"), mismatch);
+        }
+
+        // One worker and one partition find the same mismatches
+        AuditSummary serial = AgreementAudit.run(HibernateUtil.getSessionFactory(), 1_000_000, 1);
+        assertEquals(1, serial.getPartitions());
+        assertEquals(audit.getMismatchCount(), serial.getMismatchCount());
+    }
+
+    // Test 29
+    @Test
+    void shouldRestoreTheDatabaseFromASnapshot(@TempDir Path tempDir) throws IOException {
+        String[] toolCodes = new String[] {"CHNS", "LADW", "JAKD", "JAKR"};
+        List<CheckoutRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            requests.add(new CheckoutRequest(toolCodes[i % 4], 1 + i % 9,
+                    LocalDate.of(2021, 3, 1).plusDays(10L * (i / 4)), i % 4 * 5));
+        }
+        List<RentalAgreement> checkedOut = Sr0724Application.checkoutBatch(requests).getAgreements();
+        assertEquals(300, checkedOut.size());
+
+        // Enough older agreements to fill more than one block, most of them from a store
+        List<RentalAgreementRow> rows = new ArrayList<>();
+        for (int i = 0; i < RentalSnapshot.BLOCK_ROWS; i++) {
+            RentalAgreement agreement = new RentalAgreement(ToolCatalog.get(toolCodes[i % 4]), 1 + i % 30,
+                    LocalDate.of(1990, 1, 1).plusDays(i % 3000), i % 50);
+            agreement.setStoreId(i % 5 == 0 ? null : 100 + i % 7);
+            rows.add(RentalAgreementRow.of(agreement).withId(10_000_000L + i));
+        }
+        HibernateUtil.getSessionFactory().inTransaction(session -> RentalAgreementRow.insertAll(session, rows));
+
+        Path file = tempDir.resolve("rentals.snapshot");
+        RentalSnapshot.Result written = RentalSnapshot.write(HibernateUtil.getSessionFactory(), file);
+        assertEquals(300 + RentalSnapshot.BLOCK_ROWS, written.agreements());
+        assertEquals(ToolCatalog.getAll(Set.of(toolCodes)).size(), written.tools());
+        assertFalse(Files.exists(tempDir.resolve("rentals.snapshot.partial")));
+
+        String listAll = AgreementSummary.SELECT + "order by a.id";
+        String listStoreIds = "select a.storeId from RentalAgreement a order by a.id";
+        List<AgreementSummary> expected;
+        List<Integer> expectedStoreIds;
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            expected = session.createSelectionQuery(listAll, AgreementSummary.class).getResultList();
+            expectedStoreIds = session.createSelectionQuery(listStoreIds, Integer.class).getResultList();
+        }
+        assertTrue(expectedStoreIds.contains(106));
+
+        Map<String, Object> settings = Map.of(
+                "hibernate.connection.url", "jdbc:h2:mem:snapshot;DB_CLOSE_DELAY=-1",
+                "hibernate.show_sql", "false");
+
+        try (SessionFactory sessionFactory = HibernateUtil.buildSessionFactory(settings)) {
+            // A damaged block fails the whole restore and leaves the database empty
+            byte[] bytes = Files.readAllBytes(file);
+            bytes[100] ^= 1;
+            Path damaged = Files.write(tempDir.resolve("damaged.snapshot"), bytes);
+            UncheckedIOException failure = assertThrows(UncheckedIOException.class,
+                    () -> RentalSnapshot.restore(sessionFactory, damaged));
+            assertEquals("The rental snapshot is corrupt at byte 8", failure.getCause().getMessage());
+            try (Session session = sessionFactory.openSession()) {
+                assertEquals(0, session.createSelectionQuery("select count(*) from ToolPricing", Long.class)
+                        .getSingleResult());
+            }
+
+            assertEquals(written, RentalSnapshot.restore(sessionFactory, file));
+            try (Session session = sessionFactory.openSession()) {
+                assertEquals(expected, session.createSelectionQuery(listAll, AgreementSummary.class).getResultList());
+                assertEquals(expectedStoreIds, session.createSelectionQuery(listStoreIds, Integer.class).getResultList());
+            }
+
+            RuntimeException notEmpty = assertThrows(RuntimeException.class,
+                    () -> RentalSnapshot.restore(sessionFactory, file));
+            assertEquals("A snapshot can only be restored into an empty database.", notEmpty.getMessage());
+
+            // Restored agreements keep their tools booked, and new agreements get new ids
+            RentalAgreement booked = checkedOut.getLast();
+            assertFalse(ToolAvailability.isAvailable(sessionFactory, booked.getTool().getCode(),
+                    booked.getCheckoutDate(), booked.getDueDate()));
+            try (CheckoutService service = new CheckoutService(sessionFactory, 1, false)) {
+                RentalAgreement added = service.checkout(new CheckoutRequest("JAKR", 2, LocalDate.of(2030, 1, 1), 0));
+                assertTrue(added.getId() >= 10_000_000L + RentalSnapshot.BLOCK_ROWS);
+            }
+            ToolAvailability.discard(sessionFactory);
+        }
+    }
+
+    // Day-by-day charge day calculation that getChargeDays must agree with
+    private static int referenceChargeDays(RentalAgreement agreement) {
+        LocalDate checkoutDate = agreement.getCheckoutDate();
+        LocalDate dueDate = agreement.getDueDate();
+        int nonChargeDays = 0;
+
+        LocalDate date = checkoutDate;
+        for (int i = 0; i < agreement.getRentalDays(); i++) {
+            date = date.plusDays(1);
+            boolean weekend = date.getDayOfWeek() == DayOfWeek.SATURDAY
+                    || date.getDayOfWeek() == DayOfWeek.SUNDAY;
+
+            if ((weekend && !agreement.hasWeekendCharge()) || (!weekend && !agreement.hasWeekdayCharge())) {
+                nonChargeDays += 1;
+            }
+        }
+
+        if (!agreement.hasHolidayCharge()) {
+            for (int year = checkoutDate.getYear(); year <= dueDate.getYear(); year++) {
+                LocalDate independenceDay = LocalDate.of(year, 7, 4);
+                if (independenceDay.getDayOfWeek() == DayOfWeek.SATURDAY) {
+                    independenceDay = independenceDay.minusDays(1);
+                } else if (independenceDay.getDayOfWeek() == DayOfWeek.SUNDAY) {
+                    independenceDay = independenceDay.plusDays(1);
+                }
+                LocalDate laborDay = LocalDate.of(year, 9, 1).with(firstInMonth(DayOfWeek.MONDAY));
+
+                for (LocalDate holiday : new LocalDate[] {independenceDay, laborDay}) {
+                    // Only a holiday that would otherwise be charged is taken off
+                    boolean weekend = holiday.getDayOfWeek() == DayOfWeek.SATURDAY
+                            || holiday.getDayOfWeek() == DayOfWeek.SUNDAY;
+                    boolean charged = weekend ? agreement.hasWeekendCharge() : agreement.hasWeekdayCharge();
+
+                    if (charged && holiday.isAfter(checkoutDate) && holiday.plusDays(1).isBefore(dueDate)) {
+                        nonChargeDays += 1;
+                    }
+                }
+            }
+        }
+
+        return agreement.getRentalDays() - nonChargeDays;
+    }
+
     @AfterEach
     void tearDown() {
         Transaction transaction = null;
@@ -304,6 +1666,7 @@ public class Sr0724TestSuite {
             session.createMutationQuery("delete from RentalAgreement").executeUpdate();
 
             transaction.commit();
+            ToolAvailability.rebuild();
         } catch (Exception e) {
             if (transaction != null) {
                 transaction.rollback();